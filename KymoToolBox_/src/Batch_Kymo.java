@@ -0,0 +1,130 @@
+/**
+ *
+ *  Batch_Kymo v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+
+import Utilities.kymograph.*;
+
+import java.io.IOException;
+
+/**
+ * Builds and analyses the kymographs of a folder of stacks (see batchKymo).
+ * May be run from ImageJ, or without any user interface:
+ * java -cp ij.jar:KymoToolBox_.jar Batch_Kymo inputFolder outputFolder [width] [threads]
+ */
+public class Batch_Kymo implements PlugIn{
+    int width=(int) Prefs.get("DrawKymo_width.double", 10);
+    int projection=(int) Prefs.get("DrawKymo_projection.double", kymoProjection.MAX);
+    double percentile=Prefs.get("DrawKymo_percentile.double", 50);
+    int nThreads=(int) Prefs.get("DrawKymo_threads.double", Prefs.getThreads());
+    Boolean doKymoStack=Prefs.get("BatchKymo_doKymoStack.boolean", false);
+    Boolean doKymoMontage=Prefs.get("BatchKymo_doKymoMontage.boolean", false);
+    String[] dir={"From left to right", "From right to left"};
+    int dirSelect=(int) Prefs.get("AnalyseKymo_dirSelect.double", 0);
+    double minSpeed=Prefs.get("AnalyseKymo_minSpeed.double", 0);
+    boolean logFullData=Prefs.get("AnalyseKymo_logFullData.boolean", true);
+
+    public void run(String arg){
+        String inDir=new DirectoryChooser("Folder containing the stacks and RoiSets").getDirectory();
+        if (inDir==null) return;
+        String outDir=new DirectoryChooser("Folder where to save the kymographs and tables").getDirectory();
+        if (outDir==null) return;
+
+        GenericDialog gd=new GenericDialog("Batch Kymo");
+        gd.addNumericField("Width", width, 0);
+        gd.addChoice("Projection", kymoProjection.METHODS, kymoProjection.METHODS[projection]);
+        gd.addNumericField("Percentile (%)", percentile, 1);
+        gd.addCheckbox("Save_kymoStack", doKymoStack);
+        gd.addCheckbox("Save_kymoMontage", doKymoMontage);
+        gd.addChoice("Outward is...", dir, dir[dirSelect]);
+        gd.addNumericField("Lim. speed", minSpeed, 2);
+        gd.addCheckbox("Log_all_data", logFullData);
+        gd.addNumericField("Stacks processed in parallel", nThreads, 0);
+        gd.showDialog();
+
+        if (gd.wasCanceled()) return;
+
+        width=(int) gd.getNextNumber();
+        projection=gd.getNextChoiceIndex();
+        percentile=gd.getNextNumber();
+        doKymoStack=gd.getNextBoolean();
+        doKymoMontage=gd.getNextBoolean();
+        dirSelect=gd.getNextChoiceIndex();
+        minSpeed=gd.getNextNumber();
+        logFullData=gd.getNextBoolean();
+        nThreads=Math.max(1, (int) gd.getNextNumber());
+
+        Prefs.set("DrawKymo_width.double", width);
+        Prefs.set("DrawKymo_projection.double", projection);
+        Prefs.set("DrawKymo_percentile.double", percentile);
+        Prefs.set("DrawKymo_threads.double", nThreads);
+        Prefs.set("BatchKymo_doKymoStack.boolean", doKymoStack);
+        Prefs.set("BatchKymo_doKymoMontage.boolean", doKymoMontage);
+        Prefs.set("AnalyseKymo_dirSelect.double", dirSelect);
+        Prefs.set("AnalyseKymo_minSpeed.double", minSpeed);
+        Prefs.set("AnalyseKymo_logFullData.boolean", logFullData);
+
+        IJ.showStatus("Batch Kymo: processing "+inDir);
+        try{
+            IJ.log(runBatch(inDir, outDir));
+        }catch (IOException e){
+            IJ.error("Batch Kymo", e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the batch with the current parameters
+     * @param inDir folder containing the stacks and RoiSets
+     * @param outDir folder where to save the outputs
+     * @return the report on the batch
+     * @throws IOException if the tables or the report could not be written
+     */
+    String runBatch(String inDir, String outDir) throws IOException{
+        batchKymo batch=new batchKymo(inDir, outDir);
+        batch.setKymoParameters(width, projection, percentile, doKymoStack, doKymoMontage);
+        batch.setAnalysisParameters(dirSelect==1, minSpeed, logFullData);
+        batch.setThreads(nThreads);
+        batch.run();
+        return batch.getLastReport();
+    }
+
+    public static void main(String[] args){
+        if (args.length<2){
+            System.err.println("Usage: Batch_Kymo inputFolder outputFolder [width] [threads]");
+            System.exit(2);
+        }
+        Batch_Kymo bk=new Batch_Kymo();
+        if (args.length>2) bk.width=Integer.parseInt(args[2]);
+        if (args.length>3) bk.nThreads=Integer.parseInt(args[3]);
+        try{
+            System.out.println(bk.runBatch(args[0], args[1]));
+        }catch (IOException e){
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -23,6 +23,7 @@
 
 import ij.*;
 import ij.gui.*;
+import ij.io.DirectoryChooser;
 import ij.plugin.*;
 
 import Utilities.kymograph.*;
@@ -32,9 +33,19 @@ public class Draw_Kymo implements PlugIn{
     ImagePlus ip=null;
     Roi roi=null;
     int width=(int) Prefs.get("DrawKymo_width.double", 10);    
+    int projection=(int) Prefs.get("DrawKymo_projection.double", kymoProjection.MAX);
+    double percentile=Prefs.get("DrawKymo_percentile.double", 50);
+    int nThreads=(int) Prefs.get("DrawKymo_threads.double", Prefs.getThreads());
+    int zProjection=(int) Prefs.get("DrawKymo_zProjection.double", 0);
+    int binning=(int) Prefs.get("DrawKymo_binning.double", 1);
+    int binMethod=(int) Prefs.get("DrawKymo_binMethod.double", kymoProjection.MEAN);
+    int stride=(int) Prefs.get("DrawKymo_stride.double", 1);
     Boolean doKymo=Prefs.get("DrawKymo_doKymo.boolean", true);    
     Boolean doKymoStack=Prefs.get("DrawKymo_doKymoStack.boolean", true);
     Boolean doKymoMontage=Prefs.get("DrawKymo_doKymoMontage.boolean", true);
+    boolean nativeDepth=Prefs.get("DrawKymo_nativeDepth.boolean", false);
+    int montageColumns=(int) Prefs.get("DrawKymo_montageColumns.double", 1);
+    boolean streamToDisk=Prefs.get("DrawKymo_streamToDisk.boolean", false);
     
     public void run(String arg){
         if (WindowManager.getImageCount()!=0){
@@ -66,7 +77,7 @@ public class Draw_Kymo implements PlugIn{
             return;
         }
         
-        if (ip.getNSlices()==1){
+        if (ip.getNSlices()==1 && ip.getNFrames()==1){
             IJ.error("Draw Kymo requieres a stack");
             return;
         }
@@ -90,28 +101,83 @@ public class Draw_Kymo implements PlugIn{
         
         GenericDialog gd=new GenericDialog("Draw Kymo");
         gd.addNumericField("Width", width, 0);
+        gd.addChoice("Projection", kymoProjection.METHODS, kymoProjection.METHODS[projection]);
+        gd.addNumericField("Percentile (%)", percentile, 1);
+        if (ip.getNFrames()>1 && ip.getNSlices()>1) gd.addChoice("Z_projection", kymograph.ZPROJECTIONS, kymograph.ZPROJECTIONS[zProjection]);
+        gd.addNumericField("Temporal_binning (time points)", binning, 0);
+        gd.addChoice("Binning_method", kymograph.BINNINGS, kymograph.BINNINGS[binMethod]);
+        gd.addNumericField("Time_points_stride", stride, 0);
+        gd.addNumericField("Threads", nThreads, 0);
         gd.addCheckbox("Get_kymo", doKymo);
         gd.addCheckbox("Get_kymoStack", doKymoStack);
         gd.addCheckbox("Get_kymoMontage", doKymoMontage);
+        gd.addNumericField("KymoMontage_columns", montageColumns, 0);
+        gd.addCheckbox("Keep_bit_depth (8/16-bit, except sums)", nativeDepth);
+        gd.addCheckbox("Stream_outputs_to_disk (BigTIFF)", streamToDisk);
         gd.showDialog();
         
         if (gd.wasCanceled()) return;
         
         width=(int) gd.getNextNumber();
+        projection=gd.getNextChoiceIndex();
+        percentile=gd.getNextNumber();
+        if (ip.getNFrames()>1 && ip.getNSlices()>1) zProjection=gd.getNextChoiceIndex();
+        binning=Math.max(1, (int) gd.getNextNumber());
+        binMethod=gd.getNextChoiceIndex();
+        stride=Math.max(1, (int) gd.getNextNumber());
+        nThreads=Math.max(1, (int) gd.getNextNumber());
         doKymo=gd.getNextBoolean();
         doKymoStack=gd.getNextBoolean();
         doKymoMontage=gd.getNextBoolean();
+        montageColumns=Math.max(1, (int) gd.getNextNumber());
+        nativeDepth=gd.getNextBoolean();
+        streamToDisk=gd.getNextBoolean();
         
         Prefs.set("DrawKymo_width.double", width);
+        Prefs.set("DrawKymo_projection.double", projection);
+        Prefs.set("DrawKymo_percentile.double", percentile);
+        Prefs.set("DrawKymo_zProjection.double", zProjection);
+        Prefs.set("DrawKymo_binning.double", binning);
+        Prefs.set("DrawKymo_binMethod.double", binMethod);
+        Prefs.set("DrawKymo_stride.double", stride);
+        Prefs.set("DrawKymo_threads.double", nThreads);
         Prefs.set("DrawKymo_doKymo.boolean", doKymo);
         Prefs.set("DrawKymo_doKymoStack.boolean", doKymoStack);
         Prefs.set("DrawKymo_doKymoMontage.boolean", doKymoMontage);
+        Prefs.set("DrawKymo_montageColumns.double", montageColumns);
+        Prefs.set("DrawKymo_nativeDepth.boolean", nativeDepth);
+        Prefs.set("DrawKymo_streamToDisk.boolean", streamToDisk);
+        
+        int nTimePoints=ip.getNFrames()>1?ip.getNFrames():ip.getNSlices();
+        if ((nTimePoints+stride-1)/stride<binning){
+            IJ.error("Draw Kymo", "Not enough time points to fill a bin of "+binning+" with a stride of "+stride);
+            return;
+        }
+        
+        String streamDir=null;
+        if (streamToDisk){
+            streamDir=new DirectoryChooser("Folder where to stream the kymographs").getDirectory();
+            if (streamDir==null) return;
+        }
         
         kymograph kymo=new kymograph(ip);
+        kymo.setProjection(projection, percentile);
+        kymo.setZProjection(zProjection-1);
+        kymo.setTemporalSampling(binning, binMethod, stride);
+        kymo.setNativeDepth(nativeDepth);
+        kymo.setMontageColumns(montageColumns);
+        if (streamDir!=null) kymo.setStreamingOutput(streamDir, getPrefix(), bigTiffWriter.DEFAULT_CHUNK_SIZE);
+        kymo.setThreads(nThreads);
         
-        if (doKymo) kymo.getKymograph(width).show();
-        if (doKymoStack) kymo.getKymoStack(width).show();
-        if (doKymoMontage) kymo.getKymoMontage(width).show();
+        ImagePlus[] result=kymo.getKymos(width, doKymo, doKymoStack, doKymoMontage);
+        for (int i=0; i<result.length; i++) if (result[i]!=null) result[i].show();
+        IJ.showStatus(kymo.getLastReport());
+    }
+    
+    private String getPrefix(){
+        String title=ip.getTitle();
+        int dot=title.lastIndexOf('.');
+        return (dot>0?title.substring(0, dot):title)+"_";
     }
 
     private boolean useSmartCalib(){
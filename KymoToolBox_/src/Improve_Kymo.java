@@ -33,12 +33,26 @@ import Utilities.kymograph.*;
 public class Improve_Kymo implements ExtendedPlugInFilter, DialogListener{
     public static int start=1;
     public static int stop=15;
+    public static int wavelet=improveKymo.GAUSSIAN;
+    /**Conversion of the filtered values to 8 or 16-bit: SCALE maps the min to max of wavelet plane start to the full range of the bit depth, values outside being clipped (see improveKymo.getSum), CLIP rounds and clips them**/
+    public static final int SCALE=0;
+    public static final int CLIP=1;
+    public static final String[] CONVERSIONS={"Scale to range", "Clip"};
+    public static int conversion=SCALE;
     @SuppressWarnings("unused")
 	private int nPasses=1;
-    private int flags = DOES_8G|DOES_16|DOES_32;
+    private int flags = DOES_8G|DOES_16|DOES_32|PARALLELIZE_STACKS|FINAL_PROCESSING;
     private ImagePlus imp;
+    private boolean previewing=false;
+    private levelCache cache=null;
+    private int cacheSlice=0;
+    private int cacheWavelet=-1;
     
     public int setup(String arg, ImagePlus imp) {
+        if (arg.equals("final")){
+            this.imp.resetDisplayRange();
+            return DONE;
+        }
         this.imp = imp;
 
         if (IJ.versionLessThan("1.42k")) return DONE;
@@ -51,9 +65,14 @@ public class Improve_Kymo implements ExtendedPlugInFilter, DialogListener{
         GenericDialog gd = new GenericDialog(command);
         gd.addNumericField("Start", start, 0);
         gd.addNumericField("Stop", stop, 0);
+        gd.addChoice("Wavelet", improveKymo.WAVELETS, improveKymo.WAVELETS[wavelet]);
+        if (imp.getBitDepth()!=32) gd.addChoice("Conversion", CONVERSIONS, CONVERSIONS[conversion]);
         gd.addPreviewCheckbox(pfr);
         gd.addDialogListener(this);
+        previewing=true;                    // previews reuse the levels of the current slice, kept in cache
         gd.showDialog();                    // input by the user (or macro) happens here
+        previewing=false;
+        cache=null;
         if (gd.wasCanceled()) return DONE;
         IJ.register(this.getClass());       // protect static class variables (parameters) from garbage collection
         return IJ.setupDialog(imp, flags);  // ask whether to process all slices of stack (if a stack)
@@ -62,6 +81,8 @@ public class Improve_Kymo implements ExtendedPlugInFilter, DialogListener{
     public boolean dialogItemChanged(GenericDialog gd, AWTEvent e) {
         start = (int) gd.getNextNumber();
         stop = (int) gd.getNextNumber();
+        wavelet = gd.getNextChoiceIndex();
+        if (imp.getBitDepth()!=32) conversion = gd.getNextChoiceIndex();
         if (start>stop || start<1 || gd.invalidNumber())
             return false;
         
@@ -73,19 +94,25 @@ public class Improve_Kymo implements ExtendedPlugInFilter, DialogListener{
     }
     
     public void run(ImageProcessor ip) {
-        ImageProcessor result=ip.createProcessor(ip.getWidth(), ip.getHeight());
-        for (int i=start; i<=stop; i++){
-            ImageProcessor plane1=ip.duplicate();
-            ImageProcessor plane2=ip.duplicate();
-            (new GaussianBlur()).blurGaussian(plane1, i-1, i-1, 0.00001);
-            (new GaussianBlur()).blurGaussian(plane2, i, i, 0.00001);
-            result=new ImageProcessorCalculator().add(result, new ImageProcessorCalculator().substract(plane1, plane2));
+        improveKymo filter=new improveKymo();
+        filter.setWavelet(wavelet);
+        ImageProcessor result;
+        double[] range=new double[2];
+        if (previewing && ip==this.imp.getProcessor()){
+            if (cache==null || cacheSlice!=this.imp.getCurrentSlice() || cacheWavelet!=wavelet){
+                cache=new levelCache(filter, ip);
+                cacheSlice=this.imp.getCurrentSlice();
+                cacheWavelet=wavelet;
+            }
+            result=cache.getSum(start, stop, range);
+        }else{
+            result=filter.getSum(ip, start, stop, range);
         }
         switch (this.imp.getBitDepth()){
-            case 8: ip.setIntArray(result.convertToShort(true).convertToByte(true).getIntArray()); break;
-            case 16: ip.setIntArray(result.convertToShort(true).getIntArray()); break;
-            case 32: ip.setFloatArray(result.getFloatArray()); break;
+            case 8: ImageProcessorCalculator.toByte((float[]) result.getPixels(), (byte[]) ip.getPixels(), range[0], range[1], conversion==SCALE); break;
+            case 16: ImageProcessorCalculator.toShort((float[]) result.getPixels(), (short[]) ip.getPixels(), range[0], range[1], conversion==SCALE); break;
+            case 32: System.arraycopy(result.getPixels(), 0, ip.getPixels(), 0, ip.getPixelCount()); break;
         }
-        this.imp.resetDisplayRange();
+        if (ip==this.imp.getProcessor()) this.imp.resetDisplayRange();
     }
 }
\ No newline at end of file
@@ -0,0 +1,104 @@
+/**
+ *
+ *  Live_Kymo v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.*;
+
+import Utilities.kymograph.*;
+
+public class Live_Kymo implements PlugIn{
+    ImagePlus ip=null;
+    Roi roi=null;
+    int width=(int) Prefs.get("DrawKymo_width.double", 10);
+    int projection=(int) Prefs.get("DrawKymo_projection.double", kymoProjection.MAX);
+    double percentile=Prefs.get("DrawKymo_percentile.double", 50);
+    int capacity=(int) Prefs.get("LiveKymo_capacity.double", 0);
+    int interval=(int) Prefs.get("LiveKymo_interval.double", 500);
+
+    public void run(String arg){
+        if (WindowManager.getImageCount()!=0){
+            ip=WindowManager.getCurrentImage();
+            roi=ip.getRoi();
+        }
+
+        if (ip==null){
+            IJ.error("Live Kymo expects an image to be opened (typically the first frame of the acquisition)");
+            return;
+        }
+
+        if (roi==null){
+            IJ.error("Live Kymo expects a ROI to be drawn on the image");
+            return;
+        }
+
+        int type=roi.getType();
+        if (type!=Roi.LINE  && type!=Roi.FREELINE && type!=Roi.POLYLINE){
+            IJ.error("Live Kymo expects a line, a polyline or a freehand ROI to be drawn on the image");
+            return;
+        }
+
+        if (ip.getBitDepth()==24){
+            IJ.error("Live Kymo doesn't work on RGB images");
+            return;
+        }
+
+        GenericDialog gd=new GenericDialog("Live Kymo");
+        gd.addNumericField("Width", width, 0);
+        gd.addChoice("Projection", kymoProjection.METHODS, kymoProjection.METHODS[projection]);
+        gd.addNumericField("Percentile (%)", percentile, 1);
+        gd.addNumericField("Lines_kept (0 for all)", capacity, 0);
+        gd.addNumericField("Polling_interval (ms)", interval, 0);
+        gd.addCheckbox("Add_the_opened_image", true);
+        gd.showDialog();
+
+        if (gd.wasCanceled()) return;
+
+        width=(int) gd.getNextNumber();
+        projection=gd.getNextChoiceIndex();
+        percentile=gd.getNextNumber();
+        capacity=Math.max(0, (int) gd.getNextNumber());
+        interval=Math.max(10, (int) gd.getNextNumber());
+        boolean addOpened=gd.getNextBoolean();
+
+        Prefs.set("DrawKymo_width.double", width);
+        Prefs.set("DrawKymo_projection.double", projection);
+        Prefs.set("DrawKymo_percentile.double", percentile);
+        Prefs.set("LiveKymo_capacity.double", capacity);
+        Prefs.set("LiveKymo_interval.double", interval);
+
+        String folder=new DirectoryChooser("Folder to watch for new TIFF files").getDirectory();
+        if (folder==null) return;
+
+        liveKymograph kymo=new liveKymograph(ip, roi, width, capacity);
+        kymo.setProjection(projection, percentile);
+        if (addOpened) kymo.addFrames(ip);
+        kymo.show();
+        kymo.watch(folder, interval);
+        new WaitForUserDialog("Live Kymo", "Watching "+folder+"\nfor new TIFF files.\n \nClick OK to stop.").show();
+        kymo.stopWatching();
+        kymo.finishDisplay();
+        IJ.showStatus("Live Kymo: "+kymo.getFrameCount()+" frame(s) appended");
+    }
+}
@@ -23,18 +23,32 @@
 
 import ij.*;
 import ij.gui.*;
+import ij.io.DirectoryChooser;
 import ij.plugin.*;
 
 import Utilities.kymograph.*;
 import ij.measure.Calibration;
 import ij.plugin.frame.RoiManager;
 
+import java.util.ArrayList;
+
 public class MultipleDraw_Kymo implements PlugIn{
     ImagePlus ip=null;
     int width=(int) Prefs.get("DrawKymo_width.double", 10);    
+    int projection=(int) Prefs.get("DrawKymo_projection.double", kymoProjection.MAX);
+    double percentile=Prefs.get("DrawKymo_percentile.double", 50);
+    int nThreads=(int) Prefs.get("DrawKymo_threads.double", Prefs.getThreads());
+    int zProjection=(int) Prefs.get("DrawKymo_zProjection.double", 0);
+    int binning=(int) Prefs.get("DrawKymo_binning.double", 1);
+    int binMethod=(int) Prefs.get("DrawKymo_binMethod.double", kymoProjection.MEAN);
+    int stride=(int) Prefs.get("DrawKymo_stride.double", 1);
     Boolean doKymo=Prefs.get("DrawKymo_doKymo.boolean", true);    
     Boolean doKymoStack=Prefs.get("DrawKymo_doKymoStack.boolean", true);    
     Boolean doKymoMontage=Prefs.get("DrawKymo_doKymoMontage.boolean", true);
+    boolean nativeDepth=Prefs.get("DrawKymo_nativeDepth.boolean", false);
+    int montageColumns=(int) Prefs.get("DrawKymo_montageColumns.double", 1);
+    boolean streamToDisk=Prefs.get("DrawKymo_streamToDisk.boolean", false);
+    Boolean batchMode=Prefs.get("MultipleDrawKymo_batchMode.boolean", true);
     
     public void run(String arg){
         if (WindowManager.getImageCount()!=0) ip=WindowManager.getCurrentImage();
@@ -57,7 +71,7 @@ public class MultipleDraw_Kymo implements PlugIn{
             return;
         }
         
-        if (ip.getNSlices()==1){
+        if (ip.getNSlices()==1 && ip.getNFrames()==1){
             IJ.error("Multiple Draw Kymo requieres a stack");
             return;
         }
@@ -82,48 +96,135 @@ public class MultipleDraw_Kymo implements PlugIn{
         
         GenericDialog gd=new GenericDialog("Multiple Draw Kymo");
         gd.addNumericField("Width", width, 0);
+        gd.addChoice("Projection", kymoProjection.METHODS, kymoProjection.METHODS[projection]);
+        gd.addNumericField("Percentile (%)", percentile, 1);
+        if (ip.getNFrames()>1 && ip.getNSlices()>1) gd.addChoice("Z_projection", kymograph.ZPROJECTIONS, kymograph.ZPROJECTIONS[zProjection]);
+        gd.addNumericField("Temporal_binning (time points)", binning, 0);
+        gd.addChoice("Binning_method", kymograph.BINNINGS, kymograph.BINNINGS[binMethod]);
+        gd.addNumericField("Time_points_stride", stride, 0);
+        gd.addNumericField("Threads", nThreads, 0);
         gd.addCheckbox("Get_kymo", doKymo);
         gd.addCheckbox("Get_kymoStack", doKymoStack);
         gd.addCheckbox("Get_kymoMontage", doKymoMontage);
+        gd.addNumericField("KymoMontage_columns", montageColumns, 0);
+        gd.addCheckbox("Keep_bit_depth (8/16-bit, except sums)", nativeDepth);
+        gd.addCheckbox("Stream_outputs_to_disk (BigTIFF)", streamToDisk);
+        gd.addCheckbox("Batch_extraction (read each frame once for all ROIs)", batchMode);
         gd.showDialog();
         
         if (gd.wasCanceled()) return;
         
         width=(int) gd.getNextNumber();
+        projection=gd.getNextChoiceIndex();
+        percentile=gd.getNextNumber();
+        if (ip.getNFrames()>1 && ip.getNSlices()>1) zProjection=gd.getNextChoiceIndex();
+        binning=Math.max(1, (int) gd.getNextNumber());
+        binMethod=gd.getNextChoiceIndex();
+        stride=Math.max(1, (int) gd.getNextNumber());
+        nThreads=Math.max(1, (int) gd.getNextNumber());
         doKymo=gd.getNextBoolean();
         doKymoStack=gd.getNextBoolean();
         doKymoMontage=gd.getNextBoolean();
+        montageColumns=Math.max(1, (int) gd.getNextNumber());
+        nativeDepth=gd.getNextBoolean();
+        streamToDisk=gd.getNextBoolean();
+        batchMode=gd.getNextBoolean();
         
         Prefs.set("DrawKymo_width.double", width);
+        Prefs.set("DrawKymo_projection.double", projection);
+        Prefs.set("DrawKymo_percentile.double", percentile);
+        Prefs.set("DrawKymo_zProjection.double", zProjection);
+        Prefs.set("DrawKymo_binning.double", binning);
+        Prefs.set("DrawKymo_binMethod.double", binMethod);
+        Prefs.set("DrawKymo_stride.double", stride);
+        Prefs.set("DrawKymo_threads.double", nThreads);
         Prefs.set("DrawKymo_doKymo.boolean", doKymo);
         Prefs.set("DrawKymo_doKymoStack.boolean", doKymoStack);
         Prefs.set("DrawKymo_doKymoMontage.boolean", doKymoMontage);
+        Prefs.set("DrawKymo_montageColumns.double", montageColumns);
+        Prefs.set("DrawKymo_nativeDepth.boolean", nativeDepth);
+        Prefs.set("DrawKymo_streamToDisk.boolean", streamToDisk);
+        Prefs.set("MultipleDrawKymo_batchMode.boolean", batchMode);
+        
+        String streamDir=null;
+        if (streamToDisk){
+            streamDir=new DirectoryChooser("Folder where to stream the kymographs").getDirectory();
+            if (streamDir==null) return;
+        }
 
+        int nTimePoints=ip.getNFrames()>1?ip.getNFrames():ip.getNSlices();
+        if ((nTimePoints+stride-1)/stride<binning){
+            IJ.error("Multiple Draw Kymo", "Not enough time points to fill a bin of "+binning+" with a stride of "+stride);
+            return;
+        }
+        
         Roi[] roiArray=rm.getRoisAsArray();
+        ArrayList<Roi> paths=new ArrayList<Roi>();
+        ArrayList<Integer> pathIndexes=new ArrayList<Integer>();
         for (int i=0; i<rm.getCount(); i++){
             int type=roiArray[i].getType();
             if (type==Roi.LINE || type==Roi.POLYLINE || type==Roi.FREELINE){
-                kymograph kymo=new kymograph(ip, roiArray[i]);
-                ImagePlus result=null;
-                if (doKymo){
-                    result=kymo.getKymograph(width);
-                    result.setTitle(i+1+"-Kymograph from "+ip.getTitle());
-                    result.show();
-                }
-                if (doKymoStack){
-                    result=kymo.getKymoStack(width);
-                    result.setTitle(i+1+"-KymoStack from "+ip.getTitle());
-                    result.show();
-                }
-                if (doKymoMontage){
-                    result=kymo.getKymoMontage(width);
-                    result.setTitle(i+1+"-KymoMontage from "+ip.getTitle());
-                    result.show();
-                }
+                paths.add(roiArray[i]);
+                pathIndexes.add(i);
             }else{
                 IJ.log("Roi "+roiArray[i].getName()+" is not a line or a polyline Roi: no kymo, kymoStack and/or kymoMontage will be drawn from it.");
             }
         }
+        if (paths.isEmpty()){
+            IJ.error("Multiple Draw Kymo expects the RoiManager\nto contain at least one line, polyline or freeline ROI");
+            return;
+        }
+        
+        if (batchMode){
+            multiKymograph kymos=new multiKymograph(ip, paths.toArray(new Roi[paths.size()]));
+            kymos.setProjection(projection, percentile);
+            kymos.setZProjection(zProjection-1);
+            kymos.setTemporalSampling(binning, binMethod, stride);
+            kymos.setNativeDepth(nativeDepth);
+            kymos.setMontageColumns(montageColumns);
+            if (streamDir!=null){
+                String[] prefixes=new String[paths.size()];
+                for (int i=0; i<prefixes.length; i++) prefixes[i]=getPrefix()+(pathIndexes.get(i)+1)+"_";
+                kymos.setStreamingOutput(streamDir, prefixes, bigTiffWriter.DEFAULT_CHUNK_SIZE);
+            }
+            kymos.setThreads(nThreads);
+            ImagePlus[][] results=kymos.getKymos(width, doKymo, doKymoStack, doKymoMontage);
+            for (int i=0; i<results.length; i++) showResults(results[i], pathIndexes.get(i)+1);
+            IJ.showStatus(kymos.getLastReport());
+        }else{
+            for (int i=0; i<paths.size(); i++){
+                kymograph kymo=new kymograph(ip, paths.get(i));
+                kymo.setProjection(projection, percentile);
+                kymo.setZProjection(zProjection-1);
+                kymo.setTemporalSampling(binning, binMethod, stride);
+                kymo.setNativeDepth(nativeDepth);
+                kymo.setMontageColumns(montageColumns);
+                if (streamDir!=null) kymo.setStreamingOutput(streamDir, getPrefix()+(pathIndexes.get(i)+1)+"_", bigTiffWriter.DEFAULT_CHUNK_SIZE);
+                kymo.setThreads(nThreads);
+                showResults(kymo.getKymos(width, doKymo, doKymoStack, doKymoMontage), pathIndexes.get(i)+1);
+            }
+        }
+    }
+    
+    private String getPrefix(){
+        String title=ip.getTitle();
+        int dot=title.lastIndexOf('.');
+        return (dot>0?title.substring(0, dot):title)+"_";
+    }
+    
+    private void showResults(ImagePlus[] result, int roiNb){
+        if (doKymo && result[kymograph.KYMO]!=null){
+            result[kymograph.KYMO].setTitle(roiNb+"-Kymograph from "+ip.getTitle());
+            result[kymograph.KYMO].show();
+        }
+        if (doKymoStack && result[kymograph.KYMOSTACK]!=null){
+            result[kymograph.KYMOSTACK].setTitle(roiNb+"-KymoStack from "+ip.getTitle());
+            result[kymograph.KYMOSTACK].show();
+        }
+        if (doKymoMontage && result[kymograph.KYMOMONTAGE]!=null){
+            result[kymograph.KYMOMONTAGE].setTitle(roiNb+"-KymoMontage from "+ip.getTitle());
+            result[kymograph.KYMOMONTAGE].show();
+        }
     }
 
     private boolean useSmartCalib(){
@@ -91,20 +91,164 @@ public class ImageProcessorCalculator {
      */
     private ImageProcessor calculate(ImageProcessor ip1, ImageProcessor ip2, int operation){
         if (ip1.getWidth()!= ip2.getWidth()|| ip1.getHeight()!=ip2.getHeight())throw new IllegalArgumentException("ImageProcessorCalculator expects the two IamgeProcessor to be of the same size.");
-        ImageProcessor result=((ip1.duplicate()).convertToFloat());
-        float[][] array1=ip1.getFloatArray();
-        float[][] array2=ip2.getFloatArray();
-        for (int i=0; i<array1.length; i++){
-            for (int j=0; j<array1[0].length; j++){
-                switch (operation){
-                    case ADD: array1[i][j]+=array2[i][j]; break;
-                    case SUBSTRACT: array1[i][j]-=array2[i][j]; break;
-                    case MULTIPLY: array1[i][j]*=array2[i][j]; break;
-                    case DIVIDE: array1[i][j]/=array2[i][j]; break;
-                }
+        FloatProcessor result=toFloat(ip1, null);
+        calculate((float[]) result.getPixels(), getFloatPixels(ip2), operation);
+        result.resetMinAndMax();
+        return result;
+    }
+    
+    /**
+     * Copies the raw values of an ImageProcessor into a FloatProcessor, no calibration being applied
+     * @param iproc the input ImageProcessor
+     * @param dest FloatProcessor of the same size to reuse (null to create a new one)
+     * @return the FloatProcessor containing the values
+     */
+    public static FloatProcessor toFloat(ImageProcessor iproc, FloatProcessor dest){
+        if (dest==null) dest=new FloatProcessor(iproc.getWidth(), iproc.getHeight());
+        if (iproc instanceof FloatProcessor){
+            System.arraycopy(iproc.getPixels(), 0, dest.getPixels(), 0, iproc.getPixelCount());
+        }else{
+            dest=iproc.toFloat(0, dest);
+        }
+        return dest;
+    }
+    
+    /**
+     * Returns the raw values of an ImageProcessor as a float array: the pixels array itself for a
+     * FloatProcessor, a copy otherwise
+     * @param iproc the input ImageProcessor
+     * @return the values, as a float array
+     */
+    public static float[] getFloatPixels(ImageProcessor iproc){
+        if (iproc instanceof FloatProcessor) return (float[]) iproc.getPixels();
+        return (float[]) iproc.toFloat(0, null).getPixels();
+    }
+    
+    /**
+     * Does the pixelwise operation in place: acc=acc (operation) a
+     * @param acc values to modify
+     * @param a second operand
+     * @param operation ADD=0, SUBSTRACT=1, MULTIPLY=2, DIVIDE=3
+     */
+    public static void calculate(float[] acc, float[] a, int operation){
+        if (acc.length!=a.length) throw new IllegalArgumentException("ImageProcessorCalculator expects the two arrays to be of the same length.");
+        int n=acc.length;
+        switch (operation){
+            case ADD: for (int i=0; i<n; i++) acc[i]+=a[i]; break;
+            case SUBSTRACT: for (int i=0; i<n; i++) acc[i]-=a[i]; break;
+            case MULTIPLY: for (int i=0; i<n; i++) acc[i]*=a[i]; break;
+            case DIVIDE: for (int i=0; i<n; i++) acc[i]/=a[i]; break;
+            default: throw new IllegalArgumentException("ImageProcessorCalculator: unsupported operation.");
+        }
+    }
+    
+    /**
+     * Adds, in place, the difference of two arrays: acc+=a-b
+     * @param acc values to modify
+     * @param a first term of the difference
+     * @param b second term of the difference
+     */
+    public static void accumulateDifference(float[] acc, float[] a, float[] b){
+        if (acc.length!=a.length || acc.length!=b.length) throw new IllegalArgumentException("ImageProcessorCalculator expects the arrays to be of the same length.");
+        for (int i=0; i<acc.length; i++) acc[i]+=a[i]-b[i];
+    }
+    
+    /**
+     * Adds, in place, a scaled array: acc+=scale*a
+     * @param acc values to modify
+     * @param a array to add
+     * @param scale scaling factor applied to a
+     */
+    public static void scaledAdd(float[] acc, float[] a, float scale){
+        if (acc.length!=a.length) throw new IllegalArgumentException("ImageProcessorCalculator expects the two arrays to be of the same length.");
+        for (int i=0; i<acc.length; i++) acc[i]+=scale*a[i];
+    }
+    
+    /**
+     * Rounds and clips values in place to the range of a bit depth, as ImageJ does when float
+     * values are written back to an 8 or 16-bit ImageProcessor
+     * @param values values to modify
+     * @param bitDepth 8 or 16 (values are left untouched for other bit depths)
+     */
+    public static void roundToDepth(float[] values, int bitDepth){
+        if (bitDepth!=8 && bitDepth!=16) return;
+        float max=bitDepth==8?255f:65535f;
+        for (int i=0; i<values.length; i++){
+            float v=values[i]+0.5f;
+            values[i]=v<0f?0f:v>max?max:(int) v;
+        }
+    }
+    
+    /**
+     * Writes float values to a 16-bit pixels array in a single pass. When scaling, min to max is mapped to 0-65535,
+     * as convertToShort(true) does for a FloatProcessor whose min and max are min and max, otherwise values are
+     * rounded and clipped to 0-65535
+     * @param values the values to convert
+     * @param dest the 16-bit pixels array, of the same length
+     * @param min minimum of the values, mapped to 0 when scaling
+     * @param max maximum of the values, mapped to 65535 when scaling
+     * @param scale true to scale the values, false to clip them
+     */
+    public static void toShort(float[] values, short[] dest, double min, double max, boolean scale){
+        if (values.length!=dest.length) throw new IllegalArgumentException("ImageProcessorCalculator expects the two arrays to be of the same length.");
+        double factor=scale?(max-min==0?1:65535.0/(max-min)):1;
+        double offset=scale?min:0;
+        for (int i=0; i<values.length; i++){
+            double v=(values[i]-offset)*factor;
+            if (v<0) v=0;
+            if (v>65535) v=65535;
+            dest[i]=(short) (int) (v+0.5);
+        }
+    }
+    
+    /**
+     * Writes float values to an 8-bit pixels array. When scaling, the result is the one of convertToShort(true)
+     * followed by convertToByte(true), for a FloatProcessor whose min and max are min and max: the values are
+     * mapped to 0-65535, then the actual range of the 16-bit values is mapped to 0-255, without the intermediate
+     * 16-bit image; otherwise values are rounded and clipped to 0-255
+     * @param values the values to convert
+     * @param dest the 8-bit pixels array, of the same length
+     * @param min minimum of the values, mapped to 0 in 16-bit when scaling
+     * @param max maximum of the values, mapped to 65535 in 16-bit when scaling
+     * @param scale true to scale the values, false to clip them
+     */
+    public static void toByte(float[] values, byte[] dest, double min, double max, boolean scale){
+        if (values.length!=dest.length) throw new IllegalArgumentException("ImageProcessorCalculator expects the two arrays to be of the same length.");
+        if (!scale){
+            for (int i=0; i<values.length; i++){
+                double v=values[i];
+                if (v<0) v=0;
+                if (v>255) v=255;
+                dest[i]=(byte) (int) (v+0.5);
             }
+            return;
         }
-        result.setFloatArray(array1);
-        return result;
+        double factor=max-min==0?1:65535.0/(max-min);
+        int min16=65535;
+        int max16=0;
+        for (int i=0; i<values.length; i++){
+            int v16=to16(values[i], min, factor);
+            if (v16<min16) min16=v16;
+            if (v16>max16) max16=v16;
+        }
+        double factor8=256.0/(max16-min16+1);
+        for (int i=0; i<values.length; i++){
+            int v8=(int) ((to16(values[i], min, factor)-min16)*factor8+0.5);
+            dest[i]=(byte) (v8>255?255:v8);
+        }
+    }
+    
+    /**
+     * Scales a value to 16-bit, as convertToShort(true) does
+     * @param value the value to convert
+     * @param min value mapped to 0
+     * @param factor scaling factor
+     * @return the 16-bit value, rounded and clipped to 0-65535
+     */
+    private static int to16(float value, double min, double factor){
+        double v=(value-min)*factor;
+        if (v<0) v=0;
+        if (v>65535) v=65535;
+        return (int) (v+0.5);
     }
-}
\ No newline at end of file
+}
@@ -58,9 +58,9 @@ public class analyseKymo {
     /**Contains one pathInfo object per track to analyse**/
     ArrayList<pathInfo> tracks=null;
     /**x coordinates of the original path (on the 2D+t stack)**/
-    int[] xPath=null;
+    float[] xPath=null;
     /**y coordinates of the original path (on the 2D+t stack)**/
-    int[] yPath=null;
+    float[] yPath=null;
     
     /**
      * Starts the process of building an analyseKymo object
@@ -181,7 +181,7 @@ public class analyseKymo {
 
                     }
                     out.setPosition(1, (int) pi.yFullPath[j]+1, 1);
-                    out.getChannelProcessor().drawDot(xPath[(int) pi.xFullPath[j]], yPath[(int) pi.xFullPath[j]]);
+                    out.getChannelProcessor().drawDot(Math.round(xPath[(int) pi.xFullPath[j]]), Math.round(yPath[(int) pi.xFullPath[j]]));
                }
             }
             out.resetDisplayRanges();
@@ -252,11 +252,11 @@ public class analyseKymo {
     	
     	double dist=distToGround+distToRoof;
     	
-    	int xBefore=xPath[ground];
-    	int yBefore=yPath[ground];
+    	double xBefore=xPath[ground];
+    	double yBefore=yPath[ground];
     	
-    	int xAfter=xPath[roof];
-    	int yAfter=yPath[roof];
+    	double xAfter=xPath[roof];
+    	double yAfter=yPath[roof];
     	
     	//Weight are inverted to put more weight on the closest !
     	double x=(distToRoof*xBefore+distToGround*xAfter)/dist;
@@ -387,16 +387,10 @@ public class analyseKymo {
      * of the kymograph.
      */
     private void fillPathInfo(){
-        String infoPath=(String) ip.getProperty("Info");
-        if (infoPath!=null && infoPath.indexOf("<KymoPathInfo>")!=-1){
-            String[] x=infoPath.substring(infoPath.lastIndexOf("<x>")+3, infoPath.lastIndexOf("</x>")).split("\t");
-            String[] y=infoPath.substring(infoPath.lastIndexOf("<y>")+3, infoPath.lastIndexOf("</y>")).split("\t");
-            xPath=new int[x.length];
-            yPath=new int[y.length];
-            for (int i=0; i<x.length; i++){
-                xPath[i]=Integer.parseInt(x[i]);
-                yPath[i]=Integer.parseInt(y[i]);
-            }
+        float[][] coord=pathCodec.decode((String) ip.getProperty("Info"));
+        if (coord!=null){
+            xPath=coord[0];
+            yPath=coord[1];
         }
     }
 }
\ No newline at end of file
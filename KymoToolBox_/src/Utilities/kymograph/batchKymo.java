@@ -0,0 +1,393 @@
+/**
+ *
+ *  batchKymo v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * batchKymo builds the kymographs of a folder of stacks without any user interface, so that
+ * it may run unattended (headless ImageJ, compute nodes). Each stack (name.tif) is paired with
+ * the RoiSet containing its paths (name.zip or name_RoiSet.zip). One kymograph is saved per path
+ * (name_kymo_N.tif, N being the index of the path within the RoiSet, with the kymoStack and kymoMontage
+ * if requested); Rois other than lines, polylines and freelines are skipped and logged. When a RoiSet of tracks
+ * drawn on a kymograph is found (name_kymo_N_tracks.zip), the tracks are analysed and the results
+ * appended to results.csv and coordinates.csv. Stacks are processed in parallel and a report,
+ * one line per stack, is written to batch_report.csv.
+ * @author Fabrice P. Cordelieres
+ */
+public class batchKymo {
+    /**Folder containing the stacks and RoiSets**/
+    File inDir;
+    /**Folder where to save the outputs**/
+    File outDir;
+    /**Width of the paths (used for the image straightening)**/
+    int width=10;
+    /**Projection method used along the width of the paths (see kymoProjection)**/
+    int projection=kymoProjection.MAX;
+    /**Percentile to retrieve, between 0 and 100 (only used by the kymoProjection.PERCENTILE method)**/
+    double percentile=50;
+    /**True if the kymoStacks should be saved**/
+    boolean doKymoStack=false;
+    /**True if the kymoMontages should be saved**/
+    boolean doKymoMontage=false;
+    /**True if the outward direction is from right to left (analysis of the tracks)**/
+    boolean direction=false;
+    /**Minimum speed to consider the object as moving (analysis of the tracks)**/
+    double minSpeed=0;
+    /**True if all the data should be reported (analysis of the tracks)**/
+    boolean logFullData=true;
+    /**Number of stacks processed in parallel**/
+    int nThreads=1;
+    /**Number of stacks processed during the last call to run**/
+    int nFiles=0;
+    /**Number of stacks that could not be processed during the last call to run**/
+    int nFailures=0;
+    /**Time spent during the last call to run, in milliseconds**/
+    long elapsedTime=0;
+
+    /**Name of the file receiving the report**/
+    public static final String REPORT="batch_report.csv";
+    /**Name of the file receiving the results of the analysis of the tracks**/
+    public static final String RESULTS="results.csv";
+    /**Name of the file receiving the coordinates of the tracks**/
+    public static final String COORDINATES="coordinates.csv";
+
+    /**
+     * Outcome of the processing of one stack
+     */
+    static class fileReport{
+        /**Name of the stack**/
+        String name;
+        /**True if the stack has been processed**/
+        boolean success=false;
+        /**Message describing the failure, or the number of outputs**/
+        String message="";
+        /**Number of paths processed**/
+        int nPaths=0;
+        /**Number of kymographs on which tracks have been analysed**/
+        int nAnalysed=0;
+        /**Time spent on the stack, in milliseconds**/
+        long time=0;
+        /**Results of the analysis of the tracks**/
+        ArrayList<String[]> results=new ArrayList<String[]>();
+        /**Coordinates of the tracks**/
+        ArrayList<String[]> coord=new ArrayList<String[]>();
+        /**Header of the results table (null if no track has been analysed)**/
+        String[] resultsHeader=null;
+        /**Header of the coordinates table (null if no coordinates have been retrieved)**/
+        String[] coordHeader=null;
+    }
+
+    /**
+     * Creates a new batchKymo
+     * @param inDir path to the folder containing the stacks and RoiSets
+     * @param outDir path to the folder where to save the outputs (created if needed)
+     */
+    public batchKymo(String inDir, String outDir){
+        this.inDir=new File(inDir);
+        this.outDir=new File(outDir);
+        if (!this.inDir.isDirectory()) throw new IllegalArgumentException("batchKymo: "+inDir+" is not a folder.");
+        if (!this.outDir.isDirectory() && !this.outDir.mkdirs()) throw new IllegalArgumentException("batchKymo: "+outDir+" could not be created.");
+    }
+
+    /**
+     * Sets the parameters used to build the kymographs
+     * @param width width of the paths (used for the image straightening)
+     * @param projection projection method to use along the width of the paths (see kymoProjection)
+     * @param percentile percentile to retrieve, between 0 and 100 (only used by the kymoProjection.PERCENTILE method)
+     * @param doKymoStack true if the kymoStacks should be saved
+     * @param doKymoMontage true if the kymoMontages should be saved
+     */
+    public void setKymoParameters(int width, int projection, double percentile, boolean doKymoStack, boolean doKymoMontage){
+        if (projection<kymoProjection.MAX || projection>kymoProjection.PERCENTILE) throw new IllegalArgumentException("batchKymo: unknown projection method.");
+        this.width=Math.max(1, width);
+        this.projection=projection;
+        this.percentile=percentile;
+        this.doKymoStack=doKymoStack;
+        this.doKymoMontage=doKymoMontage;
+    }
+
+    /**
+     * Sets the parameters used to analyse the tracks
+     * @param direction true if the outward direction is from right to left
+     * @param minSpeed minimum speed to consider the object as moving
+     * @param logFullData true if all the data should be reported, false for a summary
+     */
+    public void setAnalysisParameters(boolean direction, double minSpeed, boolean logFullData){
+        this.direction=direction;
+        this.minSpeed=minSpeed;
+        this.logFullData=logFullData;
+    }
+
+    /**
+     * Sets the number of stacks processed in parallel
+     * @param nThreads number of threads
+     */
+    public void setThreads(int nThreads){
+        this.nThreads=Math.max(1, nThreads);
+    }
+
+    /**
+     * Processes all the stacks of the input folder, then writes the tables and the report
+     * @return the number of stacks that could not be processed
+     * @throws IOException if the tables or the report could not be written
+     */
+    public int run() throws IOException{
+        long startTime=System.currentTimeMillis();
+        File[] stacks=inDir.listFiles(new FilenameFilter(){
+            public boolean accept(File dir, String name){
+                String n=name.toLowerCase();
+                return (n.endsWith(".tif") || n.endsWith(".tiff")) && n.indexOf("_kymo")==-1;
+            }
+        });
+        if (stacks==null) stacks=new File[0];
+        Arrays.sort(stacks);
+
+        fileReport[] reports=new fileReport[stacks.length];
+        ExecutorService pool=Executors.newFixedThreadPool(nThreads);
+        try{
+            ArrayList<Future<fileReport>> tasks=new ArrayList<Future<fileReport>>();
+            for (int i=0; i<stacks.length; i++){
+                final File stack=stacks[i];
+                tasks.add(pool.submit(new Callable<fileReport>(){
+                    public fileReport call(){
+                        return process(stack);
+                    }
+                }));
+            }
+            for (int i=0; i<stacks.length; i++) reports[i]=tasks.get(i).get();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("batchKymo: processing has been interrupted.", e);
+        }catch (ExecutionException e){
+            throw new RuntimeException("batchKymo: processing failed.", e.getCause());
+        }finally{
+            pool.shutdownNow();
+        }
+
+        nFiles=stacks.length;
+        nFailures=0;
+        for (int i=0; i<reports.length; i++) if (!reports[i].success) nFailures++;
+        elapsedTime=System.currentTimeMillis()-startTime;
+        writeTables(reports);
+        return nFailures;
+    }
+
+    /**
+     * Builds, saves and analyses the kymographs of one stack. Errors are reported, not thrown,
+     * so that one faulty stack doesn't stop the batch.
+     * @param stack the stack file
+     * @return the report on the stack
+     */
+    fileReport process(File stack){
+        long startTime=System.currentTimeMillis();
+        fileReport report=new fileReport();
+        report.name=stack.getName();
+        String base=baseName(stack.getName());
+        try{
+            File roiSet=new File(inDir, base+".zip");
+            if (!roiSet.exists()) roiSet=new File(inDir, base+"_RoiSet.zip");
+            if (!roiSet.exists()) throw new IllegalArgumentException("no RoiSet found ("+base+".zip or "+base+"_RoiSet.zip)");
+            Roi[] rois=openRois(roiSet);
+            if (rois.length==0) throw new IllegalArgumentException("the RoiSet is empty");
+            ArrayList<Roi> paths=new ArrayList<Roi>();
+            ArrayList<Integer> pathIndexes=new ArrayList<Integer>();
+            for (int i=0; i<rois.length; i++){
+                int type=rois[i].getType();
+                if (type==Roi.LINE || type==Roi.POLYLINE || type==Roi.FREELINE){
+                    paths.add(rois[i]);
+                    pathIndexes.add(i);
+                }else{
+                    IJ.log(stack.getName()+": Roi "+rois[i].getName()+" is not a line or a polyline Roi: no kymo, kymoStack and/or kymoMontage will be drawn from it.");
+                }
+            }
+            if (paths.isEmpty()) throw new IllegalArgumentException("the RoiSet doesn't contain any line, polyline or freeline Roi");
+
+            ImagePlus ip=IJ.openImage(stack.getPath());
+            if (ip==null) throw new IllegalArgumentException("the stack could not be opened");
+
+            multiKymograph kymos=new multiKymograph(ip, paths.toArray(new Roi[paths.size()]));
+            kymos.setProjection(projection, percentile);
+            ImagePlus[][] results=kymos.getKymos(width, true, doKymoStack, doKymoMontage);
+            ip.close();
+
+            for (int i=0; i<results.length; i++){
+                String name=base+"_kymo_"+(pathIndexes.get(i)+1);
+                save(results[i][kymograph.KYMO], name);
+                save(results[i][kymograph.KYMOSTACK], name+"_stack");
+                save(results[i][kymograph.KYMOMONTAGE], name+"_montage");
+
+                File tracks=new File(inDir, name+"_tracks.zip");
+                if (tracks.exists()){
+                    ImagePlus kymo=results[i][kymograph.KYMO];
+                    kymo.setTitle(name);
+                    analyseKymo ak=new analyseKymo(kymo, openRois(tracks), direction, minSpeed, logFullData);
+                    report.resultsHeader=ak.getResultsHeader(logFullData);
+                    report.results.addAll(ak.getResults(logFullData));
+                    ArrayList<String[]> coord=ak.getCoord();
+                    if (coord!=null){
+                        report.coordHeader=ak.getCoordHeader();
+                        report.coord.addAll(coord);
+                    }
+                    report.nAnalysed++;
+                }
+            }
+            report.nPaths=results.length;
+            report.success=true;
+            report.message=report.nPaths+" kymograph(s), "+report.nAnalysed+" analysed";
+            if (paths.size()<rois.length) report.message+=", "+(rois.length-paths.size())+" Roi(s) skipped (not a line)";
+        }catch (Exception e){
+            report.message=e.getMessage()==null?e.toString():e.getMessage();
+        }catch (OutOfMemoryError e){
+            report.message="out of memory";
+        }
+        report.time=System.currentTimeMillis()-startTime;
+        return report;
+    }
+
+    /**
+     * Reads all the Rois stored in a RoiSet (zip file, as saved by the RoiManager)
+     * @param file the RoiSet
+     * @return the Rois, in the order they have been stored
+     * @throws IOException if the RoiSet could not be read
+     */
+    public static Roi[] openRois(File file) throws IOException{
+        ArrayList<Roi> rois=new ArrayList<Roi>();
+        ZipInputStream in=new ZipInputStream(new FileInputStream(file));
+        try{
+            byte[] buffer=new byte[8192];
+            ZipEntry entry;
+            while ((entry=in.getNextEntry())!=null){
+                if (!entry.getName().toLowerCase().endsWith(".roi")) continue;
+                ByteArrayOutputStream out=new ByteArrayOutputStream();
+                int len;
+                while ((len=in.read(buffer))>0) out.write(buffer, 0, len);
+                Roi roi=new RoiDecoder(out.toByteArray(), entry.getName()).getRoi();
+                if (roi!=null) rois.add(roi);
+            }
+        }finally{
+            in.close();
+        }
+        return rois.toArray(new Roi[rois.size()]);
+    }
+
+    /**
+     * Saves an output as a tiff file in the output folder
+     * @param ip the output (nothing is done if null)
+     * @param name name of the file, without extension
+     */
+    private void save(ImagePlus ip, String name){
+        if (ip==null) return;
+        ip.setTitle(name);
+        if (!new FileSaver(ip).saveAsTiff(new File(outDir, name+".tif").getPath())) throw new IllegalArgumentException(name+".tif could not be saved");
+    }
+
+    /**
+     * Writes the tables of results and coordinates, and the report
+     * @param reports the reports on all the stacks, in the order of the files
+     * @throws IOException if a file could not be written
+     */
+    private void writeTables(fileReport[] reports) throws IOException{
+        String[] resultsHeader=null;
+        String[] coordHeader=null;
+        ArrayList<String[]> results=new ArrayList<String[]>();
+        ArrayList<String[]> coord=new ArrayList<String[]>();
+        for (int i=0; i<reports.length; i++){
+            if (reports[i].resultsHeader!=null) resultsHeader=reports[i].resultsHeader;
+            if (reports[i].coordHeader!=null) coordHeader=reports[i].coordHeader;
+            results.addAll(reports[i].results);
+            coord.addAll(reports[i].coord);
+        }
+        if (resultsHeader!=null) writeCSV(new File(outDir, RESULTS), resultsHeader, results);
+        if (coordHeader!=null) writeCSV(new File(outDir, COORDINATES), coordHeader, coord);
+
+        ArrayList<String[]> lines=new ArrayList<String[]>();
+        for (int i=0; i<reports.length; i++) lines.add(new String[]{reports[i].name, reports[i].success?"OK":"FAILED", reports[i].time+"", reports[i].message});
+        writeCSV(new File(outDir, REPORT), new String[]{"File", "Status", "Time_(ms)", "Message"}, lines);
+    }
+
+    /**
+     * Writes a table as a comma separated values file
+     * @param file the file to write
+     * @param header the headers of the columns
+     * @param lines the lines of the table
+     * @throws IOException if the file could not be written
+     */
+    private static void writeCSV(File file, String[] header, ArrayList<String[]> lines) throws IOException{
+        PrintWriter out=new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+        try{
+            out.println(toCSV(header));
+            for (int i=0; i<lines.size(); i++) out.println(toCSV(lines.get(i)));
+        }finally{
+            out.close();
+        }
+        if (out.checkError()) throw new IOException(file.getName()+" could not be written");
+    }
+
+    /**
+     * Formats one line of a comma separated values file, quoting the fields when needed
+     * @param fields fields of the line
+     * @return the line, as a String
+     */
+    private static String toCSV(String[] fields){
+        StringBuffer sb=new StringBuffer();
+        for (int i=0; i<fields.length; i++){
+            if (i!=0) sb.append(',');
+            String field=fields[i]==null?"":fields[i];
+            if (field.indexOf(',')!=-1 || field.indexOf('"')!=-1 || field.indexOf('\n')!=-1){
+                sb.append('"').append(field.replace("\"", "\"\"")).append('"');
+            }else{
+                sb.append(field);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Removes the extension from a file name
+     * @param name the file name
+     * @return the file name, without extension
+     */
+    private static String baseName(String name){
+        int index=name.lastIndexOf('.');
+        return index==-1?name:name.substring(0, index);
+    }
+
+    /**
+     * Reports on the last call to run: number of stacks processed, failures and throughput
+     * @return the report, as a String
+     */
+    public String getLastReport(){
+        double filesPerMin=elapsedTime==0?0:nFiles*60000.0/elapsedTime;
+        return nFiles+" stack(s) processed in "+elapsedTime+" ms ("+IJ.d2s(filesPerMin, 2)+" files/min), "+nFailures+" failure(s): see "+new File(outDir, REPORT).getPath();
+    }
+}
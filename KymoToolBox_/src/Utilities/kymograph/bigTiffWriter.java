@@ -0,0 +1,398 @@
+/**
+ *
+ *  bigTiffWriter v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.io.*;
+import ij.plugin.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * bigTiffWriter streams images to disk as an uncompressed BigTIFF file while they are being built,
+ * so that outputs larger than what ImageJ may hold in memory (more than 2^31 pixels per image, or
+ * stacks larger than the available memory) can be generated. The pixels of all the planes are
+ * stored contiguously, right after the header, and may be written in any order, from several
+ * threads: the file is split into regions of a configurable size (the chunk size), each region
+ * being gathered in memory and written at once when all its pixels have been received. At most
+ * MAX_REGIONS regions are held, the least recently used one being written partially if needed.
+ * Planes are stored as strips of whole rows rather than tiles: the outputs are produced row by row,
+ * and strips keep the pixels of each plane contiguous, so that the file can be read back as a raw
+ * virtual stack. The image file directories are written on close, and the file may then be reopened
+ * with openVirtual: ImageJ 1.52p doesn't read BigTIFF files, so that File &gt; Open can't open them.
+ * @author Fabrice P. Cordelieres
+ */
+public class bigTiffWriter {
+    /**The file being written**/
+    File file;
+    /**Channel used to write the file**/
+    FileChannel channel;
+    /**Width of the planes**/
+    int width;
+    /**Height of the planes**/
+    long height;
+    /**Number of planes**/
+    int nPlanes;
+    /**Bit depth of the planes (8, 16 or 32)**/
+    int bitDepth;
+    /**Number of bytes per pixel**/
+    int bytesPerPixel;
+    /**Number of rows per strip**/
+    int rowsPerStrip;
+    /**ImageJ style description, stored in the first image file directory**/
+    String description;
+    /**Number of pixels per region**/
+    int regionPixels;
+    /**Total number of pixels of the planes**/
+    long nPixels;
+    /**Regions being gathered, keyed by their index, from the least to the most recently used**/
+    LinkedHashMap<Long, region> regions=new LinkedHashMap<Long, region>(16, 0.75f, true);
+    /**Number of bytes written so far**/
+    long bytesWritten=0;
+    /**Number of writes to disk so far**/
+    long nWrites=0;
+
+    /**Size of the BigTIFF header, ie offset of the first pixel**/
+    static final int HEADER_SIZE=16;
+    /**Default size of the regions, in bytes**/
+    public static final int DEFAULT_CHUNK_SIZE=4*1024*1024;
+    /**Maximum number of regions held in memory**/
+    public static final int MAX_REGIONS=16;
+
+    /**
+     * Part of the file gathered in memory before being written
+     */
+    static class region{
+        /**Index of the first pixel of the region**/
+        long start;
+        /**Number of pixels of the region**/
+        int length;
+        /**Pixels of the region, in the byte order of the file**/
+        ByteBuffer data;
+        /**Pixels of the region that have been received**/
+        BitSet received;
+        /**Number of pixels that have been received**/
+        int nReceived=0;
+
+        region(long start, int length, int bytesPerPixel){
+            this.start=start;
+            this.length=length;
+            data=ByteBuffer.allocate(length*bytesPerPixel).order(ByteOrder.LITTLE_ENDIAN);
+            received=new BitSet(length);
+        }
+    }
+
+    /**
+     * Creates a new bigTiffWriter, creating or overwriting the file
+     * @param path path to the file to write
+     * @param width width of the planes
+     * @param height height of the planes (may be larger than what ImageJ supports)
+     * @param nPlanes number of planes
+     * @param bitDepth bit depth of the planes (8, 16 or 32)
+     * @param description ImageJ style description (null for none)
+     * @param chunkSize size of the regions, in bytes, ie of the writes to disk: the writer holds at most MAX_REGIONS of them
+     * @throws IOException if the file could not be created
+     */
+    public bigTiffWriter(String path, int width, long height, int nPlanes, int bitDepth, String description, int chunkSize) throws IOException{
+        if (bitDepth!=8 && bitDepth!=16 && bitDepth!=32) throw new IllegalArgumentException("bigTiffWriter only writes 8, 16 and 32-bit images.");
+        file=new File(path);
+        this.width=width;
+        this.height=height;
+        this.nPlanes=nPlanes;
+        this.bitDepth=bitDepth;
+        bytesPerPixel=bitDepth/8;
+        this.description=description;
+        long rowBytes=(long) width*bytesPerPixel;
+        rowsPerStrip=(int) Math.max(1, Math.min(height, Math.max(1, chunkSize)/rowBytes));
+        regionPixels=Math.max(1, chunkSize/bytesPerPixel);
+        nPixels=(long) width*height*nPlanes;
+
+        RandomAccessFile raf=new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel=raf.getChannel();
+        ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(0);
+        header.flip();
+        channel.write(header, 0);
+    }
+
+    /**
+     * Writes pixel values, converting them to the bit depth of the file (values are rounded and clipped for 8 and 16-bit files)
+     * @param index index of the first pixel to write, counted from the first pixel of the first plane
+     * @param values values to write
+     * @param from index in values of the first value to write
+     * @param length number of values to write
+     * @throws IOException if the values could not be written
+     */
+    public synchronized void write(long index, float[] values, int from, int length) throws IOException{
+        if (index<0 || index+length>nPixels) throw new IllegalArgumentException("bigTiffWriter: pixels "+index+" to "+(index+length-1)+" are out of the image.");
+        while (length>0){
+            long key=index/regionPixels;
+            region r=regions.get(key);
+            if (r==null){
+                if (regions.size()>=MAX_REGIONS){
+                    Iterator<region> eldest=regions.values().iterator();
+                    flush(eldest.next());
+                    eldest.remove();
+                }
+                long start=key*regionPixels;
+                r=new region(start, (int) Math.min(regionPixels, nPixels-start), bytesPerPixel);
+                regions.put(key, r);
+            }
+            int offset=(int) (index-r.start);
+            int n=Math.min(length, r.length-offset);
+            for (int i=0; i<n; i++){
+                float v=values[from+i];
+                switch (bitDepth){
+                    case 8:
+                        v+=0.5f;
+                        r.data.put(offset+i, (byte) (v<0?0:v>255?255:(int) v));
+                        break;
+                    case 16:
+                        v+=0.5f;
+                        r.data.putShort(2*(offset+i), (short) (v<0?0:v>65535?65535:(int) v));
+                        break;
+                    default:
+                        r.data.putFloat(4*(offset+i), v);
+                        break;
+                }
+            }
+            int overlap=r.received.nextSetBit(offset);
+            r.received.set(offset, offset+n);
+            r.nReceived=overlap==-1 || overlap>=offset+n?r.nReceived+n:r.received.cardinality();
+            if (r.nReceived==r.length){
+                flush(r);
+                regions.remove(key);
+            }
+            index+=n;
+            from+=n;
+            length-=n;
+        }
+    }
+
+    /**
+     * Writes the pixels of a region that have been received to disk, as few contiguous runs as possible
+     * @param r the region to write
+     * @throws IOException if the region could not be written
+     */
+    private void flush(region r) throws IOException{
+        int start=r.received.nextSetBit(0);
+        while (start!=-1){
+            int end=r.received.nextClearBit(start);
+            ByteBuffer run=r.data.duplicate();
+            run.limit(end*bytesPerPixel).position(start*bytesPerPixel);
+            long position=HEADER_SIZE+(r.start+start)*bytesPerPixel;
+            while (run.hasRemaining()) position+=channel.write(run, position);
+            bytesWritten+=(long) (end-start)*bytesPerPixel;
+            nWrites++;
+            start=end<r.length?r.received.nextSetBit(end):-1;
+        }
+    }
+
+    /**
+     * Writes the pending pixels and the image file directories, then closes the file
+     * @throws IOException if the file could not be written
+     */
+    public synchronized void close() throws IOException{
+        if (channel==null) return;
+        for (region r: regions.values()) flush(r);
+        regions.clear();
+        long planeBytes=(long) width*height*bytesPerPixel;
+        long dataEnd=HEADER_SIZE+nPlanes*planeBytes;
+        int nStrips=(int) ((height+rowsPerStrip-1)/rowsPerStrip);
+        long stripBytes=(long) rowsPerStrip*width*bytesPerPixel;
+        byte[] desc=description==null?null:(description+"\0").getBytes("ISO-8859-1");
+
+        long position=dataEnd+(dataEnd%2);
+        channel.write(ByteBuffer.wrap(new byte[]{0, 0}, 0, (int) (position-dataEnd)), dataEnd);
+        ByteBuffer pointer=ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        pointer.putLong(position).flip();
+        channel.write(pointer, 8);
+
+        for (int p=0; p<nPlanes; p++){
+            boolean first=p==0 && desc!=null;
+            int nEntries=first?12:11;
+            long ifdSize=8+20L*nEntries+8;
+            long extra=position+ifdSize;
+            ByteBuffer ifd=ByteBuffer.allocate((int) ifdSize).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer arrays=ByteBuffer.allocate(nStrips>1?16*nStrips:0).order(ByteOrder.LITTLE_ENDIAN);
+            long planeStart=HEADER_SIZE+p*planeBytes;
+            long offsetsPosition=extra;
+            long countsPosition=extra+8L*nStrips;
+            long descPosition=extra+(nStrips>1?16L*nStrips:0);
+
+            ifd.putLong(nEntries);
+            entry(ifd, 254, 4, 1, 0);
+            entry(ifd, 256, 16, 1, width);
+            entry(ifd, 257, 16, 1, height);
+            entry(ifd, 258, 3, 1, bitDepth);
+            entry(ifd, 259, 3, 1, 1);
+            entry(ifd, 262, 3, 1, 1);
+            if (first) entry(ifd, 270, 2, desc.length, descPosition);
+            entry(ifd, 273, 16, nStrips, nStrips>1?offsetsPosition:planeStart);
+            entry(ifd, 277, 3, 1, 1);
+            entry(ifd, 278, 16, 1, rowsPerStrip);
+            entry(ifd, 279, 16, nStrips, nStrips>1?countsPosition:planeBytes);
+            entry(ifd, 339, 3, 1, bitDepth==32?3:1);
+            long next=descPosition+(first?desc.length:0);
+            next+=next%2;
+            boolean last=p==nPlanes-1;
+            ifd.putLong(last?0:next);
+            if (nStrips>1){
+                for (int s=0; s<nStrips; s++) arrays.putLong(planeStart+s*stripBytes);
+                for (int s=0; s<nStrips; s++) arrays.putLong(Math.min(stripBytes, planeBytes-s*stripBytes));
+            }
+            ifd.flip();
+            arrays.flip();
+            channel.write(ifd, position);
+            channel.write(arrays, extra);
+            if (first) channel.write(ByteBuffer.wrap(desc), descPosition);
+            if (!last && next>descPosition+(first?desc.length:0)) channel.write(ByteBuffer.wrap(new byte[]{0}), next-1);
+            position=next;
+        }
+        channel.close();
+        channel=null;
+    }
+
+    /**
+     * Writes the 20 bytes of a BigTIFF entry (entries should be written by increasing tag)
+     * @param ifd buffer receiving the entry
+     * @param tag tag of the entry
+     * @param type type of the entry
+     * @param count number of values
+     * @param value value, or offset of the values
+     */
+    private static void entry(ByteBuffer ifd, int tag, int type, long count, long value){
+        ifd.putShort((short) tag).putShort((short) type).putLong(count);
+        if (type==3 && count==1){
+            ifd.putShort((short) value).putShort((short) 0).putInt(0);
+        }else if (type==4 && count==1){
+            ifd.putInt((int) value).putInt(0);
+        }else{
+            ifd.putLong(value);
+        }
+    }
+
+    /**
+     * Returns the file being written
+     * @return the file
+     */
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * Builds an ImageJ style description of a stack, to be stored in the file
+     * @param nChannels number of channels
+     * @param nFrames number of frames
+     * @return the description, as a String
+     */
+    public static String getDescription(int nChannels, int nFrames){
+        String desc="ImageJ="+IJ.getVersion()+"\nimages="+(nChannels*nFrames)+"\n";
+        if (nChannels>1) desc+="channels="+nChannels+"\nhyperstack=true\nmode=composite\n";
+        if (nFrames>1) desc+="frames="+nFrames+"\n";
+        return desc;
+    }
+
+    /**
+     * Reopens, as a virtual stack, a file written by a bigTiffWriter
+     * @param path path to the file
+     * @return the virtual stack as an ImagePlus, or null if the planes are too large for ImageJ
+     * @throws IOException if the file could not be read, or has not been written by a bigTiffWriter
+     */
+    public static ImagePlus openVirtual(String path) throws IOException{
+        File f=new File(path);
+        FileChannel in=new RandomAccessFile(f, "r").getChannel();
+        try{
+            ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            in.read(header, 0);
+            header.flip();
+            if (header.get()!='I' || header.get()!='I' || header.getShort()!=43 || header.getShort()!=8) throw new IOException(f.getName()+" is not a little-endian BigTIFF file.");
+            header.getShort();
+            long ifdPosition=header.getLong();
+
+            long width=0, height=0, firstStrip=-1;
+            int bitDepth=0, format=1, nImages=0;
+            while (ifdPosition!=0){
+                ByteBuffer count=ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                in.read(count, ifdPosition);
+                count.flip();
+                int nEntries=(int) count.getLong();
+                ByteBuffer ifd=ByteBuffer.allocate(20*nEntries+8).order(ByteOrder.LITTLE_ENDIAN);
+                in.read(ifd, ifdPosition+8);
+                ifd.flip();
+                for (int i=0; i<nEntries; i++){
+                    int tag=ifd.getShort()&0xffff;
+                    int type=ifd.getShort();
+                    long n=ifd.getLong();
+                    long value=type==3?ifd.getShort()&0xffff:type==4?ifd.getInt()&0xffffffffL:ifd.getLong();
+                    if (type==3) ifd.position(ifd.position()+6);
+                    if (type==4) ifd.position(ifd.position()+4);
+                    if (nImages!=0) continue;
+                    switch (tag){
+                        case 256: width=value; break;
+                        case 257: height=value; break;
+                        case 258: bitDepth=(int) value; break;
+                        case 339: format=(int) value; break;
+                        case 273:
+                            if (n==1){
+                                firstStrip=value;
+                            }else{
+                                ByteBuffer strip=ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+                                in.read(strip, value);
+                                strip.flip();
+                                firstStrip=strip.getLong();
+                            }
+                            break;
+                    }
+                }
+                nImages++;
+                ifdPosition=ifd.getLong();
+            }
+            if (firstStrip==-1) throw new IOException(f.getName()+" doesn't contain any image.");
+            if (width*height>=Integer.MAX_VALUE) return null;
+
+            FileInfo fi=new FileInfo();
+            fi.fileFormat=FileInfo.RAW;
+            fi.directory=f.getParent()+File.separator;
+            fi.fileName=f.getName();
+            fi.width=(int) width;
+            fi.height=(int) height;
+            fi.fileType=bitDepth==8?FileInfo.GRAY8:bitDepth==16?FileInfo.GRAY16_UNSIGNED:FileInfo.GRAY32_FLOAT;
+            if (bitDepth==32 && format!=3) throw new IOException(f.getName()+": unsupported sample format.");
+            fi.intelByteOrder=true;
+            fi.longOffset=firstStrip;
+            fi.nImages=nImages;
+            fi.gapBetweenImages=0;
+            return new ImagePlus(f.getName(), new FileInfoVirtualStack(fi, false));
+        }finally{
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ *
+ *  fftScaleSpace v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.process.*;
+
+/**
+ * fftScaleSpace blurs an image by Gaussians of several sigmas in the frequency domain: the image
+ * is transformed once (Hartley transform), then each requested blurred level, or difference of
+ * levels, is obtained by multiplying the transform by the Gaussian transfer functions and by a
+ * single inverse transform, whatever the sigma. The image is extended by replicating its edges,
+ * as GaussianBlur does, and up to a power of 2.
+ * @author Fabrice P. Cordelieres
+ */
+public class fftScaleSpace {
+    /**Width of the image**/
+    int width;
+    /**Height of the image**/
+    int height;
+    /**Number of pixels added on the left and top sides of the image**/
+    int margin;
+    /**Size of the (square, power of 2) extended image**/
+    int size;
+    /**Hartley transform of the extended image**/
+    float[] transform;
+    /**Transform engine, keeping its tables between calls**/
+    FHT fht=new FHT();
+
+    /**Accuracy of the Gaussian kernels, as passed to GaussianBlur by improveKymo**/
+    static final double ACCURACY=0.00001;
+    /**Fixed time per blur of GaussianBlur, in ns (measured)**/
+    static final double SPATIAL_OVERHEAD=3e6;
+    /**Time per pixel and per blur of GaussianBlur, in ns (measured)**/
+    static final double SPATIAL_COST=15;
+    /**Fixed time of the set-up of the transform, in ns (measured)**/
+    static final double TRANSFORM_OVERHEAD=3e6;
+    /**Time per pixel and per level (log2 of the size) of the Hartley transform, including the products, in ns (measured)**/
+    static final double TRANSFORM_COST=5;
+
+    /**
+     * Creates a new fftScaleSpace, and transforms the image
+     * @param iproc the input ImageProcessor (raw values are used, no calibration being applied)
+     * @param maxSigma largest sigma to be used, setting the size of the extension
+     */
+    public fftScaleSpace(ImageProcessor iproc, double maxSigma){
+        width=iproc.getWidth();
+        height=iproc.getHeight();
+        margin=getMargin(maxSigma);
+        size=getSize(width, height, maxSigma);
+        transform=new float[size*size];
+        for (int y=0; y<size; y++){
+            int yIn=Math.min(Math.max(y-margin, 0), height-1);
+            for (int x=0; x<size; x++) transform[y*size+x]=iproc.getf(Math.min(Math.max(x-margin, 0), width-1), yIn);
+        }
+        fht.rc2DFHT(transform, false, size);
+    }
+
+    /**
+     * Returns the image blurred by a Gaussian
+     * @param sigma standard deviation of the Gaussian (0 for no blur)
+     * @return the blurred image, as a FloatProcessor
+     */
+    public FloatProcessor getBlurred(double sigma){
+        return inverse(getTransfer(sigma), null);
+    }
+
+    /**
+     * Returns the difference of the image blurred by two Gaussians, ie a wavelet plane or a sum of neighbouring ones
+     * @param sigma1 standard deviation of the first Gaussian (0 for no blur)
+     * @param sigma2 standard deviation of the second Gaussian
+     * @return the first blurred image minus the second one, as a FloatProcessor
+     */
+    public FloatProcessor getDifference(double sigma1, double sigma2){
+        return inverse(getTransfer(sigma1), getTransfer(sigma2));
+    }
+
+    /**
+     * Multiplies the transform by a separable transfer function, or by the difference of two, then
+     * inverse-transforms it and crops the result to the original image
+     * @param h1 first transfer function, along one axis
+     * @param h2 second transfer function, along one axis, subtracted from the first one (null if none)
+     * @return the result, as a FloatProcessor
+     */
+    private FloatProcessor inverse(float[] h1, float[] h2){
+        float[] product=new float[size*size];
+        for (int v=0; v<size; v++){
+            float h1v=h1[v];
+            float h2v=h2==null?0:h2[v];
+            int offset=v*size;
+            if (h2==null){
+                for (int u=0; u<size; u++) product[offset+u]=transform[offset+u]*h1v*h1[u];
+            }else{
+                for (int u=0; u<size; u++) product[offset+u]=transform[offset+u]*(h1v*h1[u]-h2v*h2[u]);
+            }
+        }
+        fht.rc2DFHT(product, true, size);
+        float[] pixels=new float[width*height];
+        for (int y=0; y<height; y++) System.arraycopy(product, (y+margin)*size+margin, pixels, y*width, width);
+        return new FloatProcessor(width, height, pixels, null);
+    }
+
+    /**
+     * Computes the transfer function of a sampled, normalised Gaussian along one axis,
+     * including its first aliased terms, so that it matches a spatial convolution
+     * @param sigma standard deviation of the Gaussian
+     * @return the transfer function, one value per frequency index
+     */
+    private float[] getTransfer(double sigma){
+        float[] h=new float[size];
+        double norm=0;
+        for (int k=-1; k<=1; k++) norm+=Math.exp(-2*Math.PI*Math.PI*sigma*sigma*k*k);
+        for (int u=0; u<size; u++){
+            double f=(u<=size/2?u:u-size)/(double) size;
+            double sum=0;
+            for (int k=-1; k<=1; k++) sum+=Math.exp(-2*Math.PI*Math.PI*sigma*sigma*(f-k)*(f-k));
+            h[u]=(float) (sum/norm);
+        }
+        return h;
+    }
+
+    /**
+     * Returns the number of pixels the image should be extended by, on each side, for a given sigma
+     * @param maxSigma largest sigma to be used
+     * @return the margin, in pixels
+     */
+    static int getMargin(double maxSigma){
+        return (int) Math.ceil(maxSigma*Math.sqrt(-2*Math.log(ACCURACY)))+1;
+    }
+
+    /**
+     * Returns the size of the extended image: the smallest power of 2 holding the image and its margins
+     * @param width width of the image
+     * @param height height of the image
+     * @param maxSigma largest sigma to be used
+     * @return the size of the extended image
+     */
+    static int getSize(int width, int height, double maxSigma){
+        int minSize=Math.max(width, height)+2*getMargin(maxSigma);
+        int size=2;
+        while (size<minSize) size*=2;
+        return size;
+    }
+
+    /**
+     * Estimates the time needed to compute some blurred levels or differences of levels in the frequency domain
+     * @param width width of the image
+     * @param height height of the image
+     * @param maxSigma largest sigma to be used
+     * @param nInverse number of levels or differences of levels to compute
+     * @return the estimated time, in ns
+     */
+    static double getCost(int width, int height, double maxSigma, int nInverse){
+        double n=getSize(width, height, maxSigma);
+        double log=Math.log(n)/Math.log(2);
+        return TRANSFORM_OVERHEAD+(1+nInverse)*n*n*log*TRANSFORM_COST;
+    }
+
+    /**
+     * Estimates the time needed to compute some blurs in the spatial domain, with GaussianBlur
+     * @param nPixels number of pixels of the image to blur (including any extension)
+     * @param nBlurs number of blurs
+     * @return the estimated time, in ns
+     */
+    static double getSpatialCost(double nPixels, int nBlurs){
+        return nBlurs*(SPATIAL_OVERHEAD+nPixels*SPATIAL_COST);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ *
+ *  frameStreamer v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * frameStreamer reads the frames of a stack (typically a VirtualStack) in order, on a
+ * background thread, and hands them over through a bounded queue: decoding of the next
+ * frames overlaps with the processing of the current one, while no more than a few
+ * decoded frames are kept in memory at once. Frames are grouped by time point, a time
+ * point being made of all the planes (channels, z) to be sampled for it.
+ * @author Fabrice P. Cordelieres
+ */
+public class frameStreamer implements Runnable{
+    /**Stack to read the frames from**/
+    ImageStack stack;
+    /**Indexes within the stack of the planes to read, for each time point**/
+    int[][] planeIndexes;
+    /**Decoded frames waiting to be processed**/
+    BlockingQueue<frame> queue;
+    /**Error raised while reading the frames (null if none)**/
+    volatile Throwable error=null;
+    /**Background thread reading the frames**/
+    Thread reader=null;
+
+    /**Marker put in the queue once all frames have been read**/
+    static final frame END=new frame(-1, null);
+
+    /**
+     * A decoded time point: index and pixels arrays of its planes
+     */
+    public static class frame{
+        /**Index of the time point (1-based)**/
+        public final int timePoint;
+        /**Pixels arrays of the planes of the time point**/
+        public final Object[] planes;
+
+        frame(int timePoint, Object[] planes){
+            this.timePoint=timePoint;
+            this.planes=planes;
+        }
+    }
+
+    /**
+     * Creates a new frameStreamer
+     * @param stack stack to read the frames from
+     * @param planeIndexes indexes within the stack (1-based) of the planes to read, for each time point
+     * @param prefetch maximum number of decoded time points waiting to be processed
+     */
+    public frameStreamer(ImageStack stack, int[][] planeIndexes, int prefetch){
+        this.stack=stack;
+        this.planeIndexes=planeIndexes;
+        queue=new ArrayBlockingQueue<frame>(Math.max(1, prefetch));
+    }
+
+    /**
+     * Starts reading the frames on a background thread
+     */
+    public void start(){
+        reader=new Thread(this, "KymoToolBox frame streamer");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Stops reading the frames, discarding the ones already decoded
+     */
+    public void stop(){
+        if (reader!=null) reader.interrupt();
+        queue.clear();
+    }
+
+    public void run(){
+        try{
+            for (int t=0; t<planeIndexes.length; t++){
+                Object[] planes=new Object[planeIndexes[t].length];
+                for (int i=0; i<planes.length; i++) planes[i]=stack.getPixels(planeIndexes[t][i]);
+                queue.put(new frame(t+1, planes));
+            }
+        }catch (InterruptedException e){
+            return;
+        }catch (Throwable t){
+            error=t;
+        }
+        try{
+            queue.put(END);
+        }catch (InterruptedException e){
+            return;
+        }
+    }
+
+    /**
+     * Retrieves the next time point, waiting for it to be decoded if needed. Several threads may
+     * share the same frameStreamer, each time point being delivered only once.
+     * @return the next time point, or null once all time points have been delivered
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public frame next() throws InterruptedException{
+        frame f=queue.take();
+        if (f==END){
+            queue.put(END);
+            if (error!=null) throw new RuntimeException("frameStreamer: frame could not be read.", error);
+            return null;
+        }
+        return f;
+    }
+
+    /**
+     * Retrieves the next time points, in order, waiting for them to be decoded if needed. The time points
+     * are taken at once, so that a single thread processes all of them (e.g. all the time points of a bin),
+     * in their order, even when several threads share the same frameStreamer.
+     * @param count number of time points to retrieve
+     * @return the next time points (fewer than count if the last time point has been reached), or null once all time points have been delivered
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized frame[] next(int count) throws InterruptedException{
+        frame[] frames=new frame[count];
+        int n=0;
+        while (n<count){
+            frame f=next();
+            if (f==null) break;
+            frames[n++]=f;
+        }
+        if (n==0) return null;
+        return n==count?frames:Arrays.copyOf(frames, n);
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ *
+ *  geometryCache v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.process.*;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * geometryCache keeps the sampling geometry (spline fitted path, coordinates, normals, length
+ * and number of pixels) of the last paths used, so that redrawing the kymographs of a path, with
+ * another output type for instance, doesn't fit and sample the path again. Entries are keyed by
+ * the vertices of the path, its width, the dimensions and the calibration of the image, and the
+ * least recently used entry is discarded once the cache is full.
+ * @author Fabrice P. Cordelieres
+ */
+public class geometryCache {
+    /**Maximum number of geometries kept**/
+    static int capacity=32;
+    /**Number of geometries retrieved from the cache**/
+    static long hits=0;
+    /**Number of geometries computed**/
+    static long misses=0;
+    /**Geometries, from the least to the most recently used**/
+    static LinkedHashMap<key, pathSampler> cache=new LinkedHashMap<key, pathSampler>(16, 0.75f, true){
+        private static final long serialVersionUID=1L;
+
+        protected boolean removeEldestEntry(Map.Entry<key, pathSampler> eldest){
+            return size()>capacity;
+        }
+    };
+
+    /**
+     * Identifies a sampling geometry: vertices and type of the path, width, dimensions and calibration of the image
+     */
+    static class key{
+        /**x coordinates of the vertices of the path**/
+        float[] x;
+        /**y coordinates of the vertices of the path**/
+        float[] y;
+        /**Type of the path**/
+        int type;
+        /**Width of the path**/
+        int width;
+        /**Width of the image**/
+        int imgWidth;
+        /**Height of the image**/
+        int imgHeight;
+        /**Pixel width of the image**/
+        double pixelWidth;
+        /**Pixel height of the image**/
+        double pixelHeight;
+        /**Unit of length of the image**/
+        String unit;
+        /**Calibration table of the image (null if none)**/
+        float[] cTable;
+        /**Hash code, computed once**/
+        int hash;
+
+        key(ImagePlus ip, Roi path, int width){
+            FloatPolygon p=path.getFloatPolygon();
+            x=Arrays.copyOf(p.xpoints, p.npoints);
+            y=Arrays.copyOf(p.ypoints, p.npoints);
+            type=path.getType();
+            this.width=Math.max(1, width);
+            imgWidth=ip.getWidth();
+            imgHeight=ip.getHeight();
+            Calibration cal=ip.getCalibration();
+            pixelWidth=cal.pixelWidth;
+            pixelHeight=cal.pixelHeight;
+            unit=cal.getUnit();
+            cTable=cal.getCTable();
+
+            hash=Arrays.hashCode(x);
+            hash=31*hash+Arrays.hashCode(y);
+            hash=31*hash+type;
+            hash=31*hash+this.width;
+            hash=31*hash+imgWidth;
+            hash=31*hash+imgHeight;
+            long bits=Double.doubleToLongBits(pixelWidth)^(31*Double.doubleToLongBits(pixelHeight));
+            hash=31*hash+(int) (bits^(bits>>>32));
+            hash=31*hash+unit.hashCode();
+            hash=31*hash+Arrays.hashCode(cTable);
+        }
+
+        public int hashCode(){
+            return hash;
+        }
+
+        public boolean equals(Object o){
+            if (!(o instanceof key)) return false;
+            key k=(key) o;
+            return hash==k.hash && type==k.type && width==k.width && imgWidth==k.imgWidth && imgHeight==k.imgHeight
+                    && pixelWidth==k.pixelWidth && pixelHeight==k.pixelHeight && unit.equals(k.unit)
+                    && Arrays.equals(x, k.x) && Arrays.equals(y, k.y) && Arrays.equals(cTable, k.cTable);
+        }
+    }
+
+    /**
+     * Retrieves the sampling geometry of a path from the cache, computing it if needed
+     * @param ip ImagePlus the path is drawn on
+     * @param path polyline Roi containing the path
+     * @param width width of the path
+     * @return the sampling geometry, as a pathSampler (shared, not to be modified)
+     */
+    public static pathSampler get(ImagePlus ip, Roi path, int width){
+        key k=new key(ip, path, width);
+        synchronized(cache){
+            pathSampler sampler=cache.get(k);
+            if (sampler!=null){
+                hits++;
+                return sampler;
+            }
+        }
+        pathSampler sampler=new pathSampler(ip, path, width);
+        synchronized(cache){
+            misses++;
+            cache.put(k, sampler);
+        }
+        return sampler;
+    }
+
+    /**
+     * Sets the maximum number of geometries kept, discarding the least recently used ones if needed
+     * @param capacity maximum number of geometries (0 to disable the cache)
+     */
+    public static void setCapacity(int capacity){
+        synchronized(cache){
+            geometryCache.capacity=Math.max(0, capacity);
+            while (cache.size()>geometryCache.capacity) cache.remove(cache.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Empties the cache and resets the counters
+     */
+    public static void clear(){
+        synchronized(cache){
+            cache.clear();
+            hits=0;
+            misses=0;
+        }
+    }
+
+    /**
+     * Returns the number of geometries retrieved from the cache
+     * @return the number of hits
+     */
+    public static long getHits(){
+        synchronized(cache){
+            return hits;
+        }
+    }
+
+    /**
+     * Returns the number of geometries computed as they were not in the cache
+     * @return the number of misses
+     */
+    public static long getMisses(){
+        synchronized(cache){
+            return misses;
+        }
+    }
+
+    /**
+     * Reports on the use of the cache
+     * @return the report, as a String
+     */
+    public static String getReport(){
+        synchronized(cache){
+            return "geometry cache: "+hits+" hit(s), "+misses+" miss(es), "+cache.size()+"/"+capacity+" entries";
+        }
+    }
+}
@@ -29,15 +29,50 @@ import ij.plugin.*;
 import ij.plugin.filter.*;
 import ij.process.*;
 
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * improveKymo filters an image on a simili wavelet basis.
  * The convolution kernel used is a 2D Gaussian of growing diameter and wavelet planes
- * are obtained by substracting two suggessive so-called wavelet planes.
+ * are obtained by substracting two suggessive so-called wavelet planes. Alternatively,
+ * the planes of a true "a trous" wavelet transform, at dyadic scales, can be used (see setWavelet).
  * @author Fabrice P. Cordelieres
  */
 public class improveKymo {
     /**The input ImagePlus (if any)**/
     ImagePlus ip=null;
+    /**True if sums of wavelet planes should be computed in closed form, false to sum the planes one by one**/
+    boolean telescoping=true;
+    /**True if the levels of the scale-space should be blurred incrementally, each from the previous one**/
+    boolean cascaded=true;
+    /**Number of threads used to filter the slices of a stack**/
+    int nThreads=Prefs.getThreads();
+    /**Backend used to blur the levels (AUTO, SPATIAL, FFT or IIR)**/
+    int backend=AUTO;
+    /**Kind of wavelet planes (GAUSSIAN or STARLET)**/
+    int wavelet=GAUSSIAN;
+    
+    /**Blurs computed in the spatial or in the frequency domain, whichever is expected to be the fastest (spatial domain for 8 and 16-bit images)**/
+    public static final int AUTO=0;
+    /**Blurs computed in the spatial domain, using GaussianBlur**/
+    public static final int SPATIAL=1;
+    /**Blurs computed in the frequency domain, using fftScaleSpace**/
+    public static final int FFT=2;
+    /**Blurs computed by a recursive filter, using recursiveGaussian: the cost doesn't depend on sigma**/
+    public static final int IIR=3;
+    /**Smallest sigma blurred by the IIR backend: below, the approximation is poorer and GaussianBlur's kernels are small**/
+    public static final double IIR_MIN_SIGMA=3;
+    /**Names of the backends, as displayed in dialogs: the backend is the index in this array**/
+    public static final String[] BACKENDS={"Auto", "Spatial", "FFT", "Recursive (IIR)"};
+    
+    /**Planes as differences of Gaussians of diameters n-1 and n**/
+    public static final int GAUSSIAN=0;
+    /**Planes of the "a trous" B3-spline wavelet transform (starlet), at scales 2^n, using starlet**/
+    public static final int STARLET=1;
+    /**Names of the kinds of wavelet planes, as displayed in dialogs: the kind is the index in this array**/
+    public static final String[] WAVELETS={"Gaussian (linear scales)", "Starlet (dyadic scales)"};
     
     /**
      * Starts building a new uninitialised improveKymo object
@@ -54,16 +89,237 @@ public class improveKymo {
     }
     
     /**
-     * Generates the n-th wavelet plane ie (input o gauss(diam=n-1)) - (input o gauss(diam=n))
+     * Sets the way sums of wavelet planes are computed. As plane n is G(n-1)-G(n), G(n) being the input
+     * blurred by a Gaussian of diameter n, the sum of planes start to stop telescopes to G(start-1)-G(stop):
+     * two blurs instead of 2*(stop-start+1). Results are identical for 8 and 16-bit images, and equal
+     * within float rounding for 32-bit images.
+     * @param telescoping true to compute sums in closed form (default), false to sum the planes one by one
+     */
+    public void setTelescoping(boolean telescoping){
+        this.telescoping=telescoping;
+    }
+    
+    /**
+     * Sets the number of threads used by getFilteredImage: each thread filters its own slices,
+     * with its own buffers, each filtered slice being stored at the index of its input slice
+     * @param nThreads number of threads (1 for single-threaded filtering)
+     */
+    public void setThreads(int nThreads){
+        this.nThreads=Math.max(1, nThreads);
+    }
+    
+    /**
+     * Sets the way the blurred levels G(n) are computed by getPlanes. In cascaded mode, each level is blurred
+     * once, in 32-bit, from the previous one with a Gaussian of sigma sqrt(n^2-(n-1)^2), so that each wavelet
+     * plane is a single subtraction of neighbouring levels: half the blurs, with much smaller kernels. The image
+     * is extended by replicating its edges, so that levels equal direct blurs within the truncation of the kernels.
+     * Only 32-bit images are blurred incrementally in the spatial domain: levels of 8 and 16-bit images are rounded
+     * direct blurs, which incremental blurs can't reproduce exactly.
+     * @param cascaded true to blur the levels incrementally (default), false to blur each level twice from the input
+     */
+    public void setCascaded(boolean cascaded){
+        this.cascaded=cascaded;
+    }
+    
+    /**
+     * Sets the backend used to blur the levels of the closed form sums and of the cascaded planes. In the
+     * frequency domain, the image is transformed once and each level, or difference of levels, costs a single
+     * inverse transform whatever its sigma; levels are not rounded for 8 and 16-bit images. In AUTO mode,
+     * 32-bit images are blurred in the spatial or in the frequency domain, whichever is expected to be the fastest
+     * from the size of the image, the largest sigma and the number of levels; 8 and 16-bit images are blurred in
+     * the spatial domain, their levels being rounded. The IIR backend is used for all the blurs (planes, sums, whatever the mode):
+     * its cost doesn't depend on sigma, so that levels are blurred directly from the input, but it only approximates
+     * the Gaussian, within about 0.6% of the range of the image. Sigmas below IIR_MIN_SIGMA are blurred spatially.
+     * @param backend AUTO, SPATIAL, FFT or IIR
+     */
+    public void setBackend(int backend){
+        if (backend!=AUTO && backend!=SPATIAL && backend!=FFT && backend!=IIR) throw new IllegalArgumentException("improveKymo: unsupported backend.");
+        this.backend=backend;
+    }
+    
+    /**
+     * Sets the kind of wavelet planes. Starlet planes are obtained by smoothing each level of the "a trous"
+     * transform from the previous one by a B3-spline kernel with holes: the scale doubles at each plane, for a
+     * fixed cost of five taps per pixel and per axis, so that large scales are reached for almost nothing.
+     * Starlet levels are computed in 32-bit, without rounding, the backend being ignored.
+     * @param wavelet GAUSSIAN (default) or STARLET
+     */
+    public void setWavelet(int wavelet){
+        if (wavelet!=GAUSSIAN && wavelet!=STARLET) throw new IllegalArgumentException("improveKymo: unsupported kind of wavelet.");
+        this.wavelet=wavelet;
+    }
+    
+    /**
+     * Tells whether blurs should be computed in the frequency domain. In AUTO mode, 8 and 16-bit images
+     * are always blurred in the spatial domain, so that their levels are rounded
+     * @param iproc the input ImageProcessor
+     * @param spatialCost estimated time of the blurs in the spatial domain, in ns
+     * @param fftCost estimated time of the blurs in the frequency domain, in ns
+     * @return true if the frequency domain should be used
+     */
+    private boolean useFFT(ImageProcessor iproc, double spatialCost, double fftCost){
+        if (backend==IIR) return false;
+        if (backend==AUTO) return iproc.getBitDepth()==32 && fftCost<spatialCost;
+        return backend==FFT;
+    }
+    
+    /**
+     * Converts an ImageProcessor to 32-bit, extending it by replicating its edge pixels, so that
+     * successive blurs of the extended image match direct blurs of the original one, which also
+     * replicate the edge pixels
+     * @param iproc the input ImageProcessor
+     * @param margin number of pixels added on each side
+     * @return a new FloatProcessor
+     */
+    private static ImageProcessor pad(ImageProcessor iproc, int margin){
+        int width=iproc.getWidth();
+        int height=iproc.getHeight();
+        int paddedWidth=width+2*margin;
+        float[] pixels=new float[paddedWidth*(height+2*margin)];
+        for (int y=0; y<height+2*margin; y++){
+            int yIn=Math.min(Math.max(y-margin, 0), height-1);
+            for (int x=0; x<paddedWidth; x++) pixels[y*paddedWidth+x]=iproc.getf(Math.min(Math.max(x-margin, 0), width-1), yIn);
+        }
+        return new FloatProcessor(paddedWidth, height+2*margin, pixels, null);
+    }
+    
+    /**
+     * Sums the start to stop wavelet planes of an ImageProcessor
+     * @param iproc the input ImageProcessor
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @return a new 32-bit ImageProcessor containing the sum, its min and max being those of the sum
+     */
+    public ImageProcessor getSum(ImageProcessor iproc, int start, int stop){
+        return getSum(iproc, start, stop, null);
+    }
+    
+    /**
+     * Sums the start to stop wavelet planes of an ImageProcessor, and retrieves the range the sum is scaled from
+     * when converted to 8 or 16-bit by Improve_Kymo: the min and max of the first plane, start
+     * @param iproc the input ImageProcessor
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @param range array receiving the min and max of wavelet plane start (null if not needed)
+     * @return a new 32-bit ImageProcessor containing the sum, its min and max being those of the sum
+     */
+    public ImageProcessor getSum(ImageProcessor iproc, int start, int stop, double[] range){
+        if (wavelet==STARLET) return starlet.getSum(iproc, start, stop, range);
+        if (telescoping){
+            if (sumUsesFFT(iproc, start, stop, range!=null)){
+                fftScaleSpace levels=new fftScaleSpace(iproc, stop);
+                FloatProcessor sum=levels.getDifference(start-1, stop);
+                if (range!=null) getRange((float[]) (stop>start?levels.getDifference(start-1, start):sum).getPixels(), null, range);
+                sum.resetMinAndMax();
+                return sum;
+            }
+            FloatProcessor plane1=blur(iproc, start-1, null);
+            FloatProcessor plane2=blur(iproc, stop, null);
+            if (range!=null) getRange((float[]) plane1.getPixels(), (float[]) (stop>start?blur(iproc, start, null):plane2).getPixels(), range);
+            ImageProcessorCalculator.calculate((float[]) plane1.getPixels(), (float[]) plane2.getPixels(), ImageProcessorCalculator.SUBSTRACT);
+            plane1.resetMinAndMax();
+            return plane1;
+        }
+        FloatProcessor result=new FloatProcessor(iproc.getWidth(), iproc.getHeight());
+        FloatProcessor plane1=blur(iproc, start-1, null);
+        FloatProcessor plane2=null;
+        for (int i=start; i<=stop; i++){
+            plane2=blur(iproc, i, plane2);
+            ImageProcessorCalculator.accumulateDifference((float[]) result.getPixels(), (float[]) plane1.getPixels(), (float[]) plane2.getPixels());
+            if (i==start && range!=null) getRange((float[]) result.getPixels(), null, range);
+            FloatProcessor swap=plane1;
+            plane1=plane2;
+            plane2=swap;
+        }
+        result.resetMinAndMax();
+        return result;
+    }
+    
+    /**
+     * Tells whether getSum computes a sum in closed form in the frequency domain rather than from blurred levels
+     * @param iproc the input ImageProcessor
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @param withRange true if the range of plane start is also requested
+     * @return true if the frequency domain is used
+     */
+    boolean sumUsesFFT(ImageProcessor iproc, int start, int stop, boolean withRange){
+        int nDifferences=withRange && stop>start?2:1;
+        return useFFT(iproc, fftScaleSpace.getSpatialCost(iproc.getWidth()*iproc.getHeight(), nDifferences+1), fftScaleSpace.getCost(iproc.getWidth(), iproc.getHeight(), stop, nDifferences));
+    }
+    
+    /**
+     * Retrieves the min and max of an array, or of the difference of two arrays
+     * @param a the values, or the first term of the difference
+     * @param b second term of the difference (null to use the values of a)
+     * @param range array receiving the min and max
+     */
+    static void getRange(float[] a, float[] b, double[] range){
+        float min=Float.MAX_VALUE;
+        float max=-Float.MAX_VALUE;
+        for (int i=0; i<a.length; i++){
+            float v=b==null?a[i]:a[i]-b[i];
+            if (v<min) min=v;
+            if (v>max) max=v;
+        }
+        range[0]=min;
+        range[1]=max;
+    }
+    
+    /**
+     * Blurs an ImageProcessor into a FloatProcessor, rounding the values as ImageJ does when blurring
+     * 8 and 16-bit images, so that the result matches a blur of a duplicate of the input (recursive
+     * blur for the IIR backend)
+     * @param iproc the input ImageProcessor (left unchanged)
+     * @param sigma standard deviation of the Gaussian
+     * @param dest FloatProcessor of the same size to reuse (null to create a new one)
+     * @return the FloatProcessor containing the blurred values
+     */
+    private FloatProcessor blur(ImageProcessor iproc, double sigma, FloatProcessor dest){
+        dest=ImageProcessorCalculator.toFloat(iproc, dest);
+        if (backend==IIR && sigma>=IIR_MIN_SIGMA){
+            recursiveGaussian.blur(dest, sigma);
+        }else{
+            (new GaussianBlur()).blurGaussian(dest, sigma, sigma, 0.00001);
+        }
+        ImageProcessorCalculator.roundToDepth((float[]) dest.getPixels(), iproc.getBitDepth());
+        return dest;
+    }
+    
+    /**
+     * Generates the n-th level of the scale-space the wavelet planes are differences of: the input blurred by a
+     * Gaussian of diameter n, rounded as getSum does, or the n-th level of the starlet transform (see setWavelet)
+     * @param iproc the input ImageProcessor (left unchanged)
+     * @param n index of the level (0 for the input itself)
+     * @return a new FloatProcessor containing the level
+     */
+    public FloatProcessor getLevel(ImageProcessor iproc, int n){
+        if (wavelet==STARLET){
+            starlet levels=new starlet(iproc);
+            levels.toLevel(n);
+            return new FloatProcessor(iproc.getWidth(), iproc.getHeight(), levels.current, null);
+        }
+        return blur(iproc, n, null);
+    }
+    
+    /**
+     * Generates the n-th wavelet plane ie (input o gauss(diam=n-1)) - (input o gauss(diam=n)),
+     * or the n-th starlet plane (see setWavelet)
      * @param index n-th wavelet plane index
      * @return an ImageProcessor
      */
     public ImageProcessor getPlane(int index){
-        ImageProcessor plane1=ip.getProcessor().duplicate();
-        ImageProcessor plane2=ip.getProcessor().duplicate();
-        (new GaussianBlur()).blurGaussian(plane1, index-1, index-1, 0.00001);
-        (new GaussianBlur()).blurGaussian(plane2, index, index, 0.00001);
-        plane1=new ImageProcessorCalculator().substract(plane1, plane2);
+        if (wavelet==STARLET){
+            starlet levels=new starlet(ip.getProcessor());
+            levels.toLevel(index);
+            FloatProcessor plane=new FloatProcessor(ip.getWidth(), ip.getHeight(), levels.getPlane(), null);
+            plane.resetMinAndMax();
+            return plane;
+        }
+        FloatProcessor plane1=blur(ip.getProcessor(), index-1, null);
+        FloatProcessor plane2=blur(ip.getProcessor(), index, null);
+        ImageProcessorCalculator.calculate((float[]) plane1.getPixels(), (float[]) plane2.getPixels(), ImageProcessorCalculator.SUBSTRACT);
+        plane1.resetMinAndMax();
         return plane1;
     }
     
@@ -76,13 +332,53 @@ public class improveKymo {
      */
     public ImagePlus getPlanes(int start, int stop){
         ImagePlus result=NewImage.createImage("Filtered "+ip.getTitle()+"("+start+"-"+stop+")", ip.getWidth(), ip.getHeight(), stop-start+1, 32, 1);
+        if (wavelet==STARLET){
+            starlet levels=new starlet(ip.getProcessor());
+            levels.toLevel(start-1);
+            for (int i=start; i<=stop; i++){
+                levels.nextLevel();
+                result.getStack().setPixels(levels.getPlane(), i-start+1);
+            }
+            result.resetDisplayRange();
+            return result;
+        }
+        if (cascaded && backend!=IIR){
+            int width=ip.getWidth();
+            int height=ip.getHeight();
+            int margin=fftScaleSpace.getMargin(stop);
+            if (useFFT(ip.getProcessor(), fftScaleSpace.getSpatialCost((width+2.0*margin)*(height+2.0*margin), stop-start+2), fftScaleSpace.getCost(width, height, stop, stop-start+1))){
+                fftScaleSpace levels=new fftScaleSpace(ip.getProcessor(), stop);
+                for (int i=start; i<=stop; i++) result.getStack().setPixels(levels.getDifference(i-1, i).getPixels(), i-start+1);
+                result.resetDisplayRange();
+                return result;
+            }
+            if (ip.getBitDepth()==32){
+                ImageProcessor previous=pad(ip.getProcessor(), margin);
+                (new GaussianBlur()).blurGaussian(previous, start-1, start-1, 0.00001);
+                for (int i=start; i<=stop; i++){
+                    ImageProcessor current=previous.duplicate();
+                    double sigma=Math.sqrt((double) i*i-(double) (i-1)*(i-1));
+                    (new GaussianBlur()).blurGaussian(current, sigma, sigma, 0.00001);
+                    float[] prev=(float[]) previous.getPixels();
+                    float[] curr=(float[]) current.getPixels();
+                    float[] plane=new float[width*height];
+                    for (int y=0; y<height; y++){
+                        int offset=(y+margin)*(width+2*margin)+margin;
+                        for (int x=0; x<width; x++) plane[y*width+x]=prev[offset+x]-curr[offset+x];
+                    }
+                    result.getStack().setPixels(plane, i-start+1);
+                    previous=current;
+                }
+                result.resetDisplayRange();
+                return result;
+            }
+        }
+        FloatProcessor plane1=blur(ip.getProcessor(), start-1, null);
         for (int i=start; i<=stop; i++){
-            result.setSlice(i-start+1);
-            ImageProcessor plane1=ip.getProcessor().duplicate();
-            ImageProcessor plane2=ip.getProcessor().duplicate();
-            (new GaussianBlur()).blurGaussian(plane1, i-1, i-1, 0.00001);
-            (new GaussianBlur()).blurGaussian(plane2, i, i, 0.00001);
-            result.setProcessor("", new ImageProcessorCalculator().substract(plane1, plane2));
+            FloatProcessor plane2=blur(ip.getProcessor(), i, null);
+            ImageProcessorCalculator.calculate((float[]) plane1.getPixels(), (float[]) plane2.getPixels(), ImageProcessorCalculator.SUBSTRACT);
+            result.getStack().setPixels(plane1.getPixels(), i-start+1);
+            plane1=plane2;
         }
         result.resetDisplayRange();
         return result;
@@ -97,12 +393,7 @@ public class improveKymo {
      */
     public ImagePlus getFilteredSlice(int start, int stop){
         ImagePlus result=NewImage.createImage("Filtered "+ip.getTitle()+"("+start+"-"+stop+")", ip.getWidth(), ip.getHeight(), 1, 32, 1);
-        ZProjector zp=new ZProjector();
-        zp.setMethod(ZProjector.SUM_METHOD);
-        ImagePlus stack=getPlanes(start, stop);
-        zp.setImage(stack);
-        zp.doProjection();
-        result.setProcessor("", zp.getProjection().getProcessor());
+        result.setProcessor("", getSum(ip.getProcessor(), start, stop));
         result.resetDisplayRange();
         return result;
     }
@@ -115,36 +406,59 @@ public class improveKymo {
      */
     public void filterSlice(ImageProcessor iproc, int start, int stop){
         this.ip=new ImagePlus("", iproc);
-        ZProjector zp=new ZProjector();
-        zp.setMethod(ZProjector.SUM_METHOD);
-        ImagePlus stack=getPlanes(start, stop);
-        zp.setImage(stack);
-        zp.doProjection();
-        ip.setProcessor("", zp.getProjection().getProcessor());
+        ip.setProcessor("", getSum(iproc, start, stop));
         ip.resetDisplayRange();
         iproc=ip.getProcessor();
     }
     
      /**
      * Generates an ImagePlus by calculating, then summing the start to end wavelet
-     * planes: works on all the slices of the input image
+     * planes: works on all the slices of the input image, spread over several threads (see setThreads)
      * @param start first wavelet plane to consider
      * @param stop  last wavelet plane to consider
      * @return an ImagePlus containing the filtered image
      */
-    public ImagePlus getFilteredImage(int start, int stop){
-        ImagePlus result=NewImage.createImage("Filtered "+ip.getTitle()+"("+start+"-"+stop+")", ip.getWidth(), ip.getHeight(), ip.getNSlices(), 32, 1);
-        ZProjector zp=new ZProjector();
-        zp.setMethod(ZProjector.SUM_METHOD);
-        for (int i=1; i<=ip.getNSlices(); i++){
-            result.setSlice(i);
-            ip.setSlice(i);
-            ImagePlus stack=getPlanes(start, stop);
-            zp.setImage(stack);
-            zp.doProjection();
-            result.setProcessor("", zp.getProjection().getProcessor());
+    public ImagePlus getFilteredImage(final int start, final int stop){
+        final ImageStack input=ip.getStack();
+        final ImageStack output=new ImageStack(ip.getWidth(), ip.getHeight(), ip.getNSlices());
+        final AtomicInteger next=new AtomicInteger(1);
+        Runnable worker=new Runnable(){
+            public void run(){
+                int i;
+                while ((i=next.getAndIncrement())<=output.getSize()){
+                    ImageProcessor slice;
+                    if (input.isVirtual()){
+                        synchronized(input){
+                            slice=input.getProcessor(i);
+                        }
+                    }else{
+                        slice=input.getProcessor(i);
+                    }
+                    output.setPixels(getSum(slice, start, stop).getPixels(), i);
+                }
+            }
+        };
+        
+        int nWorkers=Math.min(nThreads, output.getSize());
+        if (nWorkers<=1){
+            worker.run();
+        }else{
+            ExecutorService pool=Executors.newFixedThreadPool(nWorkers);
+            try{
+                ArrayList<Future<?>> workers=new ArrayList<Future<?>>();
+                for (int i=0; i<nWorkers; i++) workers.add(pool.submit(worker));
+                for (int i=0; i<workers.size(); i++) workers.get(i).get();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("improveKymo: filtering has been interrupted.", e);
+            }catch (ExecutionException e){
+                throw new RuntimeException("improveKymo: filtering failed.", e.getCause());
+            }finally{
+                pool.shutdownNow();
+            }
         }
-        result.setSlice(1);
+        
+        ImagePlus result=new ImagePlus("Filtered "+ip.getTitle()+"("+start+"-"+stop+")", output);
         result.resetDisplayRange();
         return result;
     }
@@ -0,0 +1,192 @@
+/**
+ *
+ *  kymoProjection v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+/**
+ * kymoProjection reduces a straightened image to a single line of the kymograph,
+ * projecting its pixels along the width of the path. The reduction is done
+ * directly on the straightened pixels: no array is allocated per frame.
+ * @author Fabrice P. Cordelieres
+ */
+public class kymoProjection {
+    /**Maximum intensity projection**/
+    public static final int MAX=0;
+    /**Average intensity projection**/
+    public static final int MEAN=1;
+    /**Sum of intensities projection**/
+    public static final int SUM=2;
+    /**Median intensity projection**/
+    public static final int MEDIAN=3;
+    /**Minimum intensity projection**/
+    public static final int MIN=4;
+    /**Percentile projection**/
+    public static final int PERCENTILE=5;
+    /**Names of the projection methods, as displayed in dialogs**/
+    public static final String[] METHODS={"Max", "Mean", "Sum", "Median", "Min", "Percentile"};
+
+    /**Projection method**/
+    int method=MAX;
+    /**Percentile to retrieve, between 0 and 100 (only used by the PERCENTILE method)**/
+    double percentile=50;
+    /**Scratch array used to retrieve the median/percentile of a column**/
+    float[] column=null;
+
+    /**
+     * Creates a new kymoProjection
+     * @param method projection method (MAX, MEAN, SUM, MEDIAN, MIN or PERCENTILE)
+     * @param percentile percentile to retrieve, between 0 and 100 (only used by the PERCENTILE method)
+     */
+    public kymoProjection(int method, double percentile){
+        if (method<MAX || method>PERCENTILE) throw new IllegalArgumentException("kymoProjection: unknown projection method.");
+        this.method=method;
+        this.percentile=Math.max(0, Math.min(percentile, 100));
+    }
+
+    /**
+     * Creates a new kymoProjection
+     * @param method projection method (MAX, MEAN, SUM, MEDIAN or MIN)
+     */
+    public kymoProjection(int method){
+        this(method, 50);
+    }
+
+    /**
+     * Projects a straightened image along the width of the path
+     * @param in pixels of the straightened image, line by line (nbPix*width values)
+     * @param nbPix number of pixels composing the path, ie width of the straightened image
+     * @param width width of the path, ie height of the straightened image
+     * @param out array receiving the projection
+     * @param offset index in out where to store the projection of the first pixel of the path
+     */
+    public void project(float[] in, int nbPix, int width, float[] out, int offset){
+        switch (method){
+            case MAX:
+                System.arraycopy(in, 0, out, offset, nbPix);
+                for (int j=1; j<width; j++){
+                    int line=j*nbPix;
+                    for (int i=0; i<nbPix; i++) if (in[line+i]>out[offset+i]) out[offset+i]=in[line+i];
+                }
+                break;
+            case MIN:
+                System.arraycopy(in, 0, out, offset, nbPix);
+                for (int j=1; j<width; j++){
+                    int line=j*nbPix;
+                    for (int i=0; i<nbPix; i++) if (in[line+i]<out[offset+i]) out[offset+i]=in[line+i];
+                }
+                break;
+            case SUM:
+            case MEAN:
+                System.arraycopy(in, 0, out, offset, nbPix);
+                for (int j=1; j<width; j++){
+                    int line=j*nbPix;
+                    for (int i=0; i<nbPix; i++) out[offset+i]+=in[line+i];
+                }
+                if (method==MEAN) for (int i=0; i<nbPix; i++) out[offset+i]/=width;
+                break;
+            case MEDIAN:
+            case PERCENTILE:
+                if (column==null || column.length!=width) column=new float[width];
+                for (int i=0; i<nbPix; i++){
+                    for (int j=0; j<width; j++) column[j]=in[j*nbPix+i];
+                    out[offset+i]=method==MEDIAN?median(width):select(rank(width), width);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns the median of the first n values of the scratch column
+     * @param n number of values to consider
+     * @return the median value
+     */
+    private float median(int n){
+        float lower=select((n-1)/2, n);
+        if (n%2==1) return lower;
+        float upper=column[n/2];
+        for (int i=n/2+1; i<n; i++) if (column[i]<upper) upper=column[i];
+        return (lower+upper)/2;
+    }
+
+    /**
+     * Returns the index, in the sorted column, of the value corresponding to the requested percentile (nearest rank)
+     * @param n number of values to consider
+     * @return the rank of the percentile, between 0 and n-1
+     */
+    private int rank(int n){
+        int rank=(int) Math.ceil(percentile/100*n)-1;
+        return Math.max(0, Math.min(rank, n-1));
+    }
+
+    /**
+     * Partially reorders the first n values of the scratch column so that the k-th smallest
+     * value ends at index k, smaller values before it and larger values after it (quickselect)
+     * @param k rank of the value to retrieve
+     * @param n number of values to consider
+     * @return the k-th smallest value
+     */
+    private float select(int k, int n){
+        int left=0;
+        int right=n-1;
+        while (left<right){
+            float pivot=column[(left+right)>>>1];
+            int i=left;
+            int j=right;
+            while (i<=j){
+                while (column[i]<pivot) i++;
+                while (column[j]>pivot) j--;
+                if (i<=j){
+                    float tmp=column[i];
+                    column[i]=column[j];
+                    column[j]=tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k<=j){
+                right=j;
+            }else if (k>=i){
+                left=i;
+            }else{
+                break;
+            }
+        }
+        return column[k];
+    }
+
+    /**
+     * Returns the projection method
+     * @return the projection method
+     */
+    public int getMethod(){
+        return method;
+    }
+
+    /**
+     * Returns the name of the projection method, as displayed in dialogs
+     * @return the name of the projection method
+     */
+    public String getName(){
+        return method==PERCENTILE?percentile+"th "+METHODS[method]:METHODS[method];
+    }
+}
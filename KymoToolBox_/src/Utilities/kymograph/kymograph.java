@@ -26,11 +26,15 @@ package Utilities.kymograph;
 import ij.*;
 import ij.gui.*;
 import ij.measure.*;
-import ij.plugin.*;
 import ij.process.*;
 
 import java.awt.Polygon;
-import java.util.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class kymograph {
     /**2D+t stack from which to draw the kymograph**/
@@ -47,14 +51,94 @@ public class kymograph {
     String timeUnit;
     /**Double containing the frame intervalle**/
     double timeIntervalle;
-    /**Straightener object to be used to build the kymograph**/
-    Straightener st=new Straightener();
+    /**Sampling geometry of the path, used to build the kymograph**/
+    pathSampler sampler;
+    /**Projection used along the width of the path to build the kymograph**/
+    kymoProjection projection=new kymoProjection(kymoProjection.MAX);
     /**Stores the calibration to be applied to the kymograph**/
     Calibration cal=new Calibration();
-    /**x and y series of interpolated coordinates of the path**/
-    int[] x,y;
+    /**x and y series of interpolated, subpixel coordinates of the path**/
+    float[] x,y;
+    /**True if the coordinates of the path should be compressed within the "KymoPathInfo" string**/
+    boolean compressPathInfo=false;
     /**Contains the "KymoPathInfo" string to be added to the kymograph's "Info" property**/
     String infoString="";
+    /**Number of channels of the 2D+t stack: one kymograph is built per channel**/
+    int nChannels=1;
+    /**Number of z planes per time point of the 2D+t stack**/
+    int nZ=1;
+    /**Number of time points of the 2D+t stack (frames of a hyperstack, slices otherwise)**/
+    int nTimePoints;
+    /**Projection used along z (kymoProjection.MAX, MEAN or SUM), or CURRENT_Z to only use the current z plane**/
+    int zProjection=CURRENT_Z;
+    /**Number of consecutive time points combined into each time point of the outputs**/
+    int binning=1;
+    /**Method used to combine the time points of a bin (kymoProjection.MAX, MEAN or SUM)**/
+    int binMethod=kymoProjection.MEAN;
+    /**Only one time point every stride time points is used**/
+    int stride=1;
+    /**Number of time points of the outputs**/
+    int nRows;
+    /**Bins being accumulated, indexed by time point of the outputs (1-based)**/
+    HashMap<Integer, bin> bins=new HashMap<Integer, bin>();
+    /**Number of threads used to process the frames**/
+    int nThreads=1;
+    /**Number of frames of a virtual stack decoded ahead while the current frame is being sampled**/
+    int prefetch=4;
+    /**True if the frames of virtual stacks of uncompressed files should be read directly from the file, only along the path**/
+    boolean mappedReading=true;
+    /**Number of bytes read from the file during the last call to getKymos, counted in whole pages (0 if the frames have not been read directly from the file)**/
+    long bytesRead=0;
+    /**Number of bytes a full decoding of the frames would have needed during the last call to getKymos**/
+    long frameBytes=0;
+    /**True if the outputs should keep the bit depth of the 2D+t stack, whenever possible**/
+    boolean nativeDepth=false;
+    /**Bit depth of the outputs being built (8, 16 or 32)**/
+    int outputDepth=32;
+    /**Pixels of the kymograph being built, one array per channel, of the output bit depth (null if not requested)**/
+    Object[] kymoPixels;
+    /**KymoStack being built, channels being interleaved (null if not requested)**/
+    ImageStack kymoStack;
+    /**Pixels of the kymoMontage being built, one array per channel, of the output bit depth (null if not requested)**/
+    Object[] montagePixels;
+    /**Number of columns of the kymoMontage: time points fill each column from top to bottom, then the next one**/
+    int montageColumns=1;
+    /**Number of rows (ie of time points per column) of the kymoMontage being built**/
+    int montageRows;
+    /**Folder where to stream the outputs as BigTIFF files (null to build them in memory)**/
+    String streamingFolder=null;
+    /**Prefix of the names of the streamed files**/
+    String streamingPrefix="";
+    /**Size of the write buffer of each streamed output, in bytes**/
+    int chunkSize=bigTiffWriter.DEFAULT_CHUNK_SIZE;
+    /**Writers streaming the kymograph, the kymoStack and the kymoMontage to disk (null for outputs not requested or not streamed)**/
+    bigTiffWriter[] writers=new bigTiffWriter[3];
+    /**Files written during the last call to getKymos, indexed by KYMO, KYMOSTACK and KYMOMONTAGE (null for outputs not requested or not streamed)**/
+    File[] streamedFiles=new File[3];
+    /**Number of outputs built during the last call to getKymos**/
+    int nbOutputs=0;
+    /**Number of frames sampled during the last call to getKymos**/
+    int nbSampled=0;
+    /**Time spent during the last call to getKymos, in milliseconds**/
+    long elapsedTime=0;
+    /**Time spent reading and sampling the frames during the last call to getKymos, summed over the threads, in nanoseconds**/
+    AtomicLong samplingTime=new AtomicLong();
+    /**Time spent filling the outputs during the last call to getKymos, summed over the threads, in nanoseconds**/
+    AtomicLong fillingTime=new AtomicLong();
+    
+    /**Index of the kymograph in the array returned by getKymos**/
+    public static final int KYMO=0;
+    /**Index of the kymoStack in the array returned by getKymos**/
+    public static final int KYMOSTACK=1;
+    /**Index of the kymoMontage in the array returned by getKymos**/
+    public static final int KYMOMONTAGE=2;
+    
+    /**No projection along z: only the current z plane of the hyperstack is used**/
+    public static final int CURRENT_Z=-1;
+    /**Names of the projections along z, as displayed in dialogs: the projection method is the index in this array minus one**/
+    public static final String[] ZPROJECTIONS={"None (current plane)", kymoProjection.METHODS[kymoProjection.MAX], kymoProjection.METHODS[kymoProjection.MEAN], kymoProjection.METHODS[kymoProjection.SUM]};
+    /**Names of the methods combining the time points of a bin, as displayed in dialogs: the method is the index in this array**/
+    public static final String[] BINNINGS={kymoProjection.METHODS[kymoProjection.MAX], kymoProjection.METHODS[kymoProjection.MEAN], kymoProjection.METHODS[kymoProjection.SUM]};
     
     
     /**
@@ -77,7 +161,17 @@ public class kymograph {
         int type=path.getType();
         if (type!=Roi.POLYLINE)throw new IllegalArgumentException("kymograph expect a line, freeline or polyline ROI.");
         if (unit.equals("pixel")) throw new IllegalArgumentException("kymograph expects the ImagePlus to be calibrated.");
-        if (ip.getNSlices()==1) throw new IllegalArgumentException("kymograph expects the ImagePlus to be a stack.");
+        
+        nChannels=ip.getNChannels();
+        if (ip.getNFrames()>1){
+            nTimePoints=ip.getNFrames();
+            nZ=ip.getNSlices();
+        }else{
+            nTimePoints=ip.getNSlices();
+            nZ=1;
+        }
+        if (nTimePoints==1) throw new IllegalArgumentException("kymograph expects the ImagePlus to be a stack.");
+        nRows=nTimePoints;
     }
 
     /**
@@ -94,23 +188,28 @@ public class kymograph {
      * @return the kymograph as an ImagePlus
      */
     public ImagePlus getKymograph(int width){
-        if(width<1) width=1;
-        calcCalibAndGetKymoPathCoord(width);
-    	
-        float[][] imgArray=new float[nbPix][ip.getNSlices()];
-        ImagePlus result=NewImage.createImage("Kymograph from "+ip.getTitle(), nbPix, ip.getNSlices(), 1, 32, 1);
-
-        for (int i=1; i<=ip.getNSlices(); i++){
-            ip.setSlice(i);
-            ip.setRoi(path);
-            float[] tmp=yProj(st.straighten(ip, path, width));
-            for (int j=0; j<Math.min(nbPix, tmp.length); j++) imgArray[j][i-1]=tmp[j];
-        }
-        
-        
-        result.getProcessor().setFloatArray(imgArray);
-        finalStep(result);
-        return result;
+        return getKymos(width, true, false, false)[KYMO];
+    }
+    
+    /**
+     * Builds the image of the kymograph, using the requested projection along the width of the path
+     * @param width width of the path (used for the image straightening)
+     * @param projection projection method to use along the width of the path (see kymoProjection)
+     * @param percentile percentile to retrieve, between 0 and 100 (only used by the kymoProjection.PERCENTILE method)
+     * @return the kymograph as an ImagePlus
+     */
+    public ImagePlus getKymograph(int width, int projection, double percentile){
+        setProjection(projection, percentile);
+        return getKymograph(width);
+    }
+    
+    /**
+     * Sets the projection used along the width of the path to build the kymograph
+     * @param projection projection method to use along the width of the path (see kymoProjection)
+     * @param percentile percentile to retrieve, between 0 and 100 (only used by the kymoProjection.PERCENTILE method)
+     */
+    public void setProjection(int projection, double percentile){
+        this.projection=new kymoProjection(projection, percentile);
     }
     
     /**
@@ -120,21 +219,7 @@ public class kymograph {
      * @return the kymoStack as an ImagePlus
      */
     public ImagePlus getKymoStack(int width){
-    	if(width<1) width=1;
-    	 calcCalibAndGetKymoPathCoord(width);
-        
-        ImagePlus result=NewImage.createImage("KymoStack from "+ip.getTitle(), nbPix, width, ip.getNSlices(), 32, 1);
-        
-        for (int i=1; i<=ip.getNSlices(); i++){
-            ip.setSlice(i);
-            ip.setRoi(path);
-            result.setSlice(i);
-            result.setProcessor("", st.straighten(ip, path, width));
-        }
-        
-        result.setTitle("KymoStack from "+ip.getTitle());
-        finalStep(result);
-        return result;
+        return getKymos(width, false, true, false)[KYMOSTACK];
     }
     
     /**
@@ -144,72 +229,762 @@ public class kymograph {
      * @return the kymoMontage as an ImagePlus
      */
     public ImagePlus getKymoMontage(int width){
-    	if(width<1) width=1;
-    	calcCalibAndGetKymoPathCoord(width);
+        return getKymos(width, false, false, true)[KYMOMONTAGE];
+    }
+    
+    /**
+     * Builds all the requested outputs in a single pass over the 2D+t stack: each frame
+     * is sampled along the path only once and the result is used to fill the kymograph, the kymoStack
+     * and the kymoMontage
+     * @param width width of the path (used for the image straightening)
+     * @param doKymo true if the kymograph should be built
+     * @param doKymoStack true if the kymoStack should be built
+     * @param doKymoMontage true if the kymoMontage should be built
+     * @return an array of ImagePlus, indexed by KYMO, KYMOSTACK and KYMOMONTAGE (null for outputs not requested)
+     */
+    public ImagePlus[] getKymos(int width, boolean doKymo, boolean doKymoStack, boolean doKymoMontage){
+        long startTime=System.currentTimeMillis();
+        prepareOutputs(width, doKymo, doKymoStack, doKymoMontage);
+        try{
+            processFrames(getSourceStack(ip, new kymograph[]{this}), new kymograph[]{this}, nThreads, prefetch);
+        }catch (RuntimeException e){
+            abortOutputs();
+            throw e;
+        }
+        ImagePlus[] result=getOutputs();
+        
+        nbOutputs=(doKymo?1:0)+(doKymoStack?1:0)+(doKymoMontage?1:0);
+        nbSampled=nRows*binning;
+        elapsedTime=System.currentTimeMillis()-startTime;
+        return result;
+    }
+    
+    /**
+     * Sets the way the coordinates of the path are stored within the "KymoPathInfo" string
+     * @param compress true if the coordinates should be deflated, false to store them as plain text
+     */
+    public void setCompressPathInfo(boolean compress){
+        compressPathInfo=compress;
+    }
+    
+    /**
+     * Sets the number of threads used to process the frames: each thread samples its own
+     * frames and fills its own lines/slices of the outputs
+     * @param nThreads number of threads (1 for single-threaded processing)
+     */
+    public void setThreads(int nThreads){
+        this.nThreads=Math.max(1, nThreads);
+    }
+    
+    /**
+     * Sets the way frames of virtual stacks are read. When the virtual stack comes from an uncompressed
+     * TIFF or raw file, its frames may be read directly from the file, only the pixels lying within the band
+     * around the path being read instead of whole frames. The operating system reading files by whole pages,
+     * the saving depends on the number of pages the band touches (see getLastReport).
+     * @param mappedReading true to read the frames directly from the file whenever possible
+     */
+    public void setMappedReading(boolean mappedReading){
+        this.mappedReading=mappedReading;
+    }
+    
+    /**
+     * Sets the number of frames of a virtual stack decoded ahead, on a background thread,
+     * while the current frame is being sampled
+     * @param prefetch number of frames decoded ahead (0 to read the frames without background thread)
+     */
+    public void setPrefetch(int prefetch){
+        this.prefetch=Math.max(0, prefetch);
+    }
+    
+    /**
+     * Sets the bit depth of the outputs. The bit depth of 8 and 16-bit stacks may be kept, halving
+     * (16-bit) or quartering (8-bit) the memory used by the outputs, unless the projections sum
+     * intensities or the stack has a calibration function: 32-bit outputs are then built.
+     * Interpolated values are rounded to the nearest integer, and clipped to the range of the bit depth.
+     * @param nativeDepth true to keep the bit depth of the 2D+t stack, false to build 32-bit outputs
+     */
+    public void setNativeDepth(boolean nativeDepth){
+        this.nativeDepth=nativeDepth;
+    }
+    
+    /**
+     * Sets the layout of the kymoMontage: time points fill each column from top to bottom, then the next
+     * one, so that the montage of long movies may be kept below the maximum height of an image
+     * @param nColumns number of columns (1 to stack all the time points in a single column)
+     */
+    public void setMontageColumns(int nColumns){
+        montageColumns=Math.max(1, nColumns);
+    }
+    
+    /**
+     * Sets the outputs to be streamed to disk as BigTIFF files while they are being built, instead
+     * of being held in memory: the memory used is then bounded by the chunk size, whatever the
+     * size of the outputs. Once built, the outputs are reopened as virtual stacks.
+     * @param folder folder where to write the files (null to build the outputs in memory)
+     * @param prefix prefix of the names of the files, followed by Kymograph.tif, KymoStack.tif or KymoMontage.tif
+     * @param chunkSize size of the write buffer of each output, in bytes
+     */
+    public void setStreamingOutput(String folder, String prefix, int chunkSize){
+        streamingFolder=folder;
+        streamingPrefix=prefix==null?"":prefix;
+        this.chunkSize=Math.max(1, chunkSize);
+    }
+    
+    /**
+     * Returns the files written during the last call to getKymos, when the outputs are streamed to disk.
+     * Outputs too large to be reopened by ImageJ are only available as files.
+     * @return an array of File, indexed by KYMO, KYMOSTACK and KYMOMONTAGE (null for outputs not requested or not streamed)
+     */
+    public File[] getStreamedFiles(){
+        return streamedFiles.clone();
+    }
+    
+    /**
+     * Sets the projection used along z when the 2D+t stack is a hyperstack with several z planes per time point.
+     * The projection is done on the fly, on the straightened images.
+     * @param zProjection kymoProjection.MAX, kymoProjection.MEAN, kymoProjection.SUM, or CURRENT_Z to only use the current z plane
+     */
+    public void setZProjection(int zProjection){
+        if (zProjection!=CURRENT_Z && zProjection!=kymoProjection.MAX && zProjection!=kymoProjection.MEAN && zProjection!=kymoProjection.SUM) throw new IllegalArgumentException("kymograph: unsupported projection along z.");
+        this.zProjection=zProjection;
+    }
+    
+    /**
+     * Sets the temporal sampling of the outputs, so that very long movies give kymographs of a
+     * manageable height: only one time point every stride time points is read, then the time
+     * points read are grouped into bins of consecutive ones, each bin giving one time point of the
+     * outputs. Bins are accumulated on the fly, trailing time points not filling a whole bin being
+     * ignored. The frame interval of the outputs is multiplied by stride*binning.
+     * @param binning number of time points per bin (1 for no binning)
+     * @param binMethod method combining the time points of a bin: kymoProjection.MAX, kymoProjection.MEAN or kymoProjection.SUM
+     * @param stride only one time point every stride time points is read (1 to read all of them)
+     */
+    public void setTemporalSampling(int binning, int binMethod, int stride){
+        if (binMethod!=kymoProjection.MAX && binMethod!=kymoProjection.MEAN && binMethod!=kymoProjection.SUM) throw new IllegalArgumentException("kymograph: unsupported binning method.");
+        if (binning<1 || stride<1) throw new IllegalArgumentException("kymograph: binning and stride should be at least 1.");
+        int nRead=(nTimePoints+stride-1)/stride;
+        if (nRead<binning) throw new IllegalArgumentException("kymograph: "+nRead+" time points are read, not enough to fill a bin of "+binning+".");
+        this.binning=binning;
+        this.binMethod=binMethod;
+        this.stride=stride;
+        nRows=nRead/binning;
+    }
+    
+    /**
+     * Computes the sampling geometry of the path and allocates the requested outputs
+     * @param width width of the path (used for the image straightening)
+     * @param doKymo true if the kymograph should be built
+     * @param doKymoStack true if the kymoStack should be built
+     * @param doKymoMontage true if the kymoMontage should be built
+     */
+    void prepareOutputs(int width, boolean doKymo, boolean doKymoStack, boolean doKymoMontage){
+        if(width<1) width=1;
+        calcCalibAndGetKymoPathCoord(width);
         
-        ImagePlus result=NewImage.createImage("KymoMontage from "+ip.getTitle(), nbPix, width*ip.getNSlices(), 1, 32, 1);
+        outputDepth=32;
+        if (nativeDepth && (ip.getBitDepth()==8 || ip.getBitDepth()==16) && ip.getCalibration().getCTable()==null
+                && projection.getMethod()!=kymoProjection.SUM && zProjection!=kymoProjection.SUM
+                && (binning==1 || binMethod!=kymoProjection.SUM)) outputDepth=ip.getBitDepth();
         
-        for (int i=1; i<=ip.getNSlices(); i++){
-            ip.setSlice(i);
-            ip.setRoi(path);
-            new ImagePlus("", st.straighten(ip, path, width)).copy(false);
-            result.setRoi(new Roi(0, (i-1)*width, nbPix, width));
-            result.paste();
-            result.killRoi();
-        }
-        finalStep(result);
+        montageColumns=Math.min(montageColumns, nRows);
+        montageRows=(nRows+montageColumns-1)/montageColumns;
+        samplingTime.set(0);
+        fillingTime.set(0);
+        streamedFiles=new File[3];
+        bins.clear();
+        if (streamingFolder!=null){
+            kymoPixels=null;
+            kymoStack=null;
+            montagePixels=null;
+            try{
+                if (doKymo) createWriter(KYMO, "Kymograph", nbPix, nRows, nChannels, bigTiffWriter.getDescription(nChannels, 1));
+                if (doKymoStack) createWriter(KYMOSTACK, "KymoStack", nbPix, width, nChannels*nRows, bigTiffWriter.getDescription(nChannels, nRows));
+                if (doKymoMontage) createWriter(KYMOMONTAGE, "KymoMontage", nbPix*montageColumns, (long) width*montageRows, nChannels, bigTiffWriter.getDescription(nChannels, 1));
+            }catch (IOException e){
+                throw new RuntimeException("kymograph: output could not be created in "+streamingFolder+".", e);
+            }
+            return;
+        }
+        kymoPixels=doKymo?new Object[nChannels]:null;
+        montagePixels=doKymoMontage?new Object[nChannels]:null;
+        for (int c=0; c<nChannels; c++){
+            if (doKymo) kymoPixels[c]=newPixels(nbPix*nRows);
+            if (doKymoMontage) montagePixels[c]=newPixels(nbPix*montageColumns*width*montageRows);
+        }
+        kymoStack=doKymoStack?new ImageStack(nbPix, width, nChannels*nRows):null;
+    }
+    
+    /**
+     * Creates the writer streaming an output to disk
+     * @param output index of the output (KYMO, KYMOSTACK or KYMOMONTAGE)
+     * @param name name of the output, used to build the name of the file
+     * @param width width of the planes of the output
+     * @param height height of the planes of the output
+     * @param nPlanes number of planes of the output
+     * @param description ImageJ style description of the output
+     * @throws IOException if the file could not be created
+     */
+    private void createWriter(int output, String name, int width, long height, int nPlanes, String description) throws IOException{
+        streamedFiles[output]=new File(streamingFolder, streamingPrefix+name+".tif");
+        writers[output]=new bigTiffWriter(streamedFiles[output].getPath(), width, height, nPlanes, outputDepth, description, chunkSize);
+    }
+    
+    /**
+     * Allocates a pixels array of the output bit depth
+     * @param size number of pixels
+     * @return a byte[], short[] or float[] array
+     */
+    private Object newPixels(int size){
+        switch (outputDepth){
+            case 8: return new byte[size];
+            case 16: return new short[size];
+            default: return new float[size];
+        }
+    }
+    
+    /**
+     * Writes float values into a pixels array of the output bit depth, rounding and clipping them if needed
+     * @param src values to write
+     * @param srcPos index of the first value to write
+     * @param dest pixels array, as returned by newPixels
+     * @param destPos index in dest where to write the first value
+     * @param length number of values to write
+     */
+    private static void store(float[] src, int srcPos, Object dest, int destPos, int length){
+        if (dest instanceof float[]){
+            System.arraycopy(src, srcPos, dest, destPos, length);
+        }else if (dest instanceof short[]){
+            short[] px=(short[]) dest;
+            for (int i=0; i<length; i++){
+                float v=src[srcPos+i]+0.5f;
+                px[destPos+i]=(short) (v<0?0:v>65535?65535:(int) v);
+            }
+        }else{
+            byte[] px=(byte[]) dest;
+            for (int i=0; i<length; i++){
+                float v=src[srcPos+i]+0.5f;
+                px[destPos+i]=(byte) (v<0?0:v>255?255:(int) v);
+            }
+        }
+    }
+    
+    /**
+     * Lists, for each time point to read, the indexes within the stack of the planes to sample:
+     * all channels and, for each channel, either all z planes or the current one. Time points skipped
+     * by the stride, or not filling a whole bin, are not listed.
+     * @return an array containing, for each time point to read, the stack indexes (1-based) ordered by channel, then z
+     */
+    int[][] getPlaneIndexes(){
+        int currZ=ip.getNFrames()>1?ip.getSlice():1;
+        int nPlanes=zProjection==CURRENT_Z?1:nZ;
+        int[][] indexes=new int[nRows*binning][nChannels*nPlanes];
+        for (int i=0; i<indexes.length; i++){
+            int t=1+i*stride;
+            for (int c=1; c<=nChannels; c++){
+                for (int z=1; z<=nPlanes; z++){
+                    int zPos=nPlanes==1?currZ:z;
+                    indexes[i][(c-1)*nPlanes+z-1]=ip.getNFrames()>1?ip.getStackIndex(c, zPos, t):ip.getStackIndex(c, t, 1);
+                }
+            }
+        }
+        return indexes;
+    }
+    
+    /**
+     * A bin being accumulated: running combination of the straightened images of its time points, per channel
+     */
+    static class bin{
+        /**Accumulated straightened images, one per channel (null until the first time point has been added)**/
+        float[][] pixels;
+        /**Number of time points added so far**/
+        int count=0;
+        
+        bin(int nChannels){
+            pixels=new float[nChannels][];
+        }
+    }
+    
+    /**
+     * Samples the path on all the planes of one time point and fills the corresponding parts of the outputs,
+     * or adds it to its bin when time points are binned
+     * @param planes pixels arrays of the planes of the time point, ordered by channel, then z
+     * @param timePoint index of the time point among those read (1-based)
+     * @param straightPixels buffers receiving the straightened images, one per channel (nbPix*width values each, null to allocate a new one)
+     * @param zPixels buffer used to sample additional z planes (nbPix*width values)
+     * @param line buffer receiving the line of the kymograph before it is converted to the output bit depth (nbPix values, unused for 32-bit outputs)
+     * @param proj projection to use to build the line of the kymograph
+     */
+    void processTimePoint(Object[] planes, int timePoint, float[][] straightPixels, float[] zPixels, float[] line, kymoProjection proj){
+        int width=sampler.getWidth();
+        int n=nbPix*width;
+        int nPlanes=planes.length/nChannels;
+        long start=System.nanoTime();
+        for (int c=0; c<nChannels; c++){
+            if (straightPixels[c]==null) straightPixels[c]=new float[n];
+            float[] straight=straightPixels[c];
+            sampler.sample(planes[c*nPlanes], straight);
+            for (int z=1; z<nPlanes; z++){
+                sampler.sample(planes[c*nPlanes+z], zPixels);
+                switch (zProjection){
+                    case kymoProjection.MAX:
+                        for (int i=0; i<n; i++) if (zPixels[i]>straight[i]) straight[i]=zPixels[i];
+                        break;
+                    case kymoProjection.MEAN:
+                    case kymoProjection.SUM:
+                        for (int i=0; i<n; i++) straight[i]+=zPixels[i];
+                        break;
+                }
+            }
+            if (zProjection==kymoProjection.MEAN && nPlanes>1) for (int i=0; i<n; i++) straight[i]/=nPlanes;
+            samplingTime.addAndGet(System.nanoTime()-start);
+            
+            if (binning==1){
+                start=System.nanoTime();
+                if (emit(straight, timePoint, c, line, proj)) straightPixels[c]=null;
+                fillingTime.addAndGet(System.nanoTime()-start);
+            }
+            start=System.nanoTime();
+        }
+        if (binning>1) accumulate(straightPixels, (timePoint-1)/binning+1, line, proj);
+    }
+    
+    /**
+     * Adds the straightened images of a time point to its bin, then fills the outputs with the bin once complete.
+     * Bins are shared between the threads, only the bins being filled being kept in memory.
+     * @param straightPixels straightened images of the time point, one per channel
+     * @param row index of the time point of the outputs the bin corresponds to (1-based)
+     * @param line buffer receiving the line of the kymograph before it is converted to the output bit depth
+     * @param proj projection to use to build the line of the kymograph
+     */
+    private void accumulate(float[][] straightPixels, int row, float[] line, kymoProjection proj){
+        bin b;
+        synchronized(bins){
+            b=bins.get(row);
+            if (b==null){
+                b=new bin(nChannels);
+                bins.put(row, b);
+            }
+        }
+        synchronized(b){
+            for (int c=0; c<nChannels; c++){
+                float[] straight=straightPixels[c];
+                float[] acc=b.pixels[c];
+                if (acc==null){
+                    b.pixels[c]=straight.clone();
+                }else if (binMethod==kymoProjection.MAX){
+                    for (int i=0; i<acc.length; i++) if (straight[i]>acc[i]) acc[i]=straight[i];
+                }else{
+                    for (int i=0; i<acc.length; i++) acc[i]+=straight[i];
+                }
+            }
+            if (++b.count<binning) return;
+        }
+        synchronized(bins){
+            bins.remove(row);
+        }
+        long start=System.nanoTime();
+        for (int c=0; c<nChannels; c++){
+            float[] acc=b.pixels[c];
+            if (binMethod==kymoProjection.MEAN) for (int i=0; i<acc.length; i++) acc[i]/=binning;
+            emit(acc, row, c, line, proj);
+        }
+        fillingTime.addAndGet(System.nanoTime()-start);
+    }
+    
+    /**
+     * Fills the parts of the outputs corresponding to a straightened image
+     * @param straight the straightened image
+     * @param timePoint index of the time point of the outputs (1-based)
+     * @param c index of the channel (0-based)
+     * @param line buffer receiving the line of the kymograph before it is converted to the output bit depth (nbPix values, unused for 32-bit outputs)
+     * @param proj projection to use to build the line of the kymograph
+     * @return true if the straightened image is now part of the kymoStack, and should not be reused
+     */
+    private boolean emit(float[] straight, int timePoint, int c, float[] line, kymoProjection proj){
+        int width=sampler.getWidth();
+        int n=nbPix*width;
+        if (streamingFolder!=null){
+            stream(straight, timePoint, c, line, proj);
+            return false;
+        }
+        boolean handedOver=false;
+        if (kymoPixels!=null){
+            if (outputDepth==32){
+                proj.project(straight, nbPix, width, (float[]) kymoPixels[c], (timePoint-1)*nbPix);
+            }else{
+                proj.project(straight, nbPix, width, line, 0);
+                store(line, 0, kymoPixels[c], (timePoint-1)*nbPix, nbPix);
+            }
+        }
+        if (montagePixels!=null){
+            int montageWidth=nbPix*montageColumns;
+            int origin=((timePoint-1)%montageRows)*width*montageWidth+((timePoint-1)/montageRows)*nbPix;
+            for (int j=0; j<width; j++) store(straight, j*nbPix, montagePixels[c], origin+j*montageWidth, nbPix);
+        }
+        if (kymoStack!=null){
+            if (outputDepth==32){
+                kymoStack.setPixels(straight, (timePoint-1)*nChannels+c+1);
+                handedOver=true;
+            }else{
+                Object slice=newPixels(n);
+                store(straight, 0, slice, 0, n);
+                kymoStack.setPixels(slice, (timePoint-1)*nChannels+c+1);
+            }
+        }
+        return handedOver;
+    }
+    
+    /**
+     * Writes the parts of the outputs corresponding to a straightened image to their files
+     * @param straight the straightened image
+     * @param timePoint index of the time point (1-based)
+     * @param c index of the channel (0-based)
+     * @param line buffer receiving the line of the kymograph (nbPix values)
+     * @param proj projection to use to build the line of the kymograph
+     */
+    private void stream(float[] straight, int timePoint, int c, float[] line, kymoProjection proj){
+        int width=sampler.getWidth();
+        int n=nbPix*width;
+        try{
+            if (writers[KYMO]!=null){
+                proj.project(straight, nbPix, width, line, 0);
+                writers[KYMO].write(((long) c*nRows+timePoint-1)*nbPix, line, 0, nbPix);
+            }
+            if (writers[KYMOSTACK]!=null) writers[KYMOSTACK].write(((long) (timePoint-1)*nChannels+c)*n, straight, 0, n);
+            if (writers[KYMOMONTAGE]!=null){
+                long montageWidth=(long) nbPix*montageColumns;
+                long origin=(long) c*montageWidth*width*montageRows+(long) ((timePoint-1)%montageRows)*width*montageWidth+(long) ((timePoint-1)/montageRows)*nbPix;
+                for (int j=0; j<width; j++) writers[KYMOMONTAGE].write(origin+j*montageWidth, straight, j*nbPix, nbPix);
+            }
+        }catch (IOException e){
+            throw new RuntimeException("kymograph: output could not be written to "+streamingFolder+".", e);
+        }
+    }
+    
+    /**
+     * Releases the outputs after a failure, closing the files being streamed
+     */
+    void abortOutputs(){
+        bins.clear();
+        kymoPixels=null;
+        kymoStack=null;
+        montagePixels=null;
+        for (int i=0; i<3; i++){
+            if (writers[i]==null) continue;
+            try{
+                writers[i].close();
+            }catch (IOException e){
+            }
+            writers[i]=null;
+        }
+    }
+    
+    /**
+     * Wraps the outputs that have been filled into ImagePlus, and releases the buffers
+     * @return an array of ImagePlus, indexed by KYMO, KYMOSTACK and KYMOMONTAGE (null for outputs not requested)
+     */
+    ImagePlus[] getOutputs(){
+        ImagePlus[] result=new ImagePlus[3];
+        int width=sampler.getWidth();
+        if (streamingFolder!=null){
+            String[] titles={"Kymograph from ", "KymoStack from ", "KymoMontage from "};
+            for (int i=0; i<3; i++){
+                if (writers[i]==null) continue;
+                try{
+                    writers[i].close();
+                    ImagePlus reopened=bigTiffWriter.openVirtual(streamedFiles[i].getPath());
+                    if (reopened!=null) result[i]=wrap(titles[i]+ip.getTitle(), reopened.getStack(), i==KYMOSTACK?nRows:1);
+                }catch (IOException e){
+                    throw new RuntimeException("kymograph: "+streamedFiles[i].getName()+" could not be written.", e);
+                }finally{
+                    writers[i]=null;
+                }
+            }
+            return result;
+        }
+        if (kymoPixels!=null){
+            ImageStack is=new ImageStack(nbPix, nRows);
+            for (int c=0; c<nChannels; c++) is.addSlice("", kymoPixels[c]);
+            result[KYMO]=wrap("Kymograph from "+ip.getTitle(), is, 1);
+        }
+        if (kymoStack!=null){
+            result[KYMOSTACK]=wrap("KymoStack from "+ip.getTitle(), kymoStack, nRows);
+        }
+        if (montagePixels!=null){
+            ImageStack is=new ImageStack(nbPix*montageColumns, width*montageRows);
+            for (int c=0; c<nChannels; c++) is.addSlice("", montagePixels[c]);
+            result[KYMOMONTAGE]=wrap("KymoMontage from "+ip.getTitle(), is, 1);
+        }
+        kymoPixels=null;
+        kymoStack=null;
+        montagePixels=null;
         return result;
     }
+    
+    /**
+     * Wraps an output stack into an ImagePlus, as a composite image if the 2D+t stack has several channels
+     * @param title title of the output
+     * @param is stack containing the output, channels being interleaved
+     * @param nFrames number of frames of the output
+     * @return the output as an ImagePlus
+     */
+    private ImagePlus wrap(String title, ImageStack is, int nFrames){
+        ImagePlus out=new ImagePlus(title, is);
+        if (nChannels>1){
+            out.setDimensions(nChannels, 1, nFrames);
+            CompositeImage comp=new CompositeImage(out, ip.isComposite()?((CompositeImage) ip).getMode():CompositeImage.COLOR);
+            if (ip.isComposite()) for (int c=1; c<=nChannels; c++) comp.setChannelLut(((CompositeImage) ip).getChannelLut(c), c);
+            out=comp;
+            out.setOpenAsHyperStack(true);
+        }
+        finalStep(out);
+        return out;
+    }
+    
+    /**
+     * Returns the stack the frames should be read from: a mappedBandStack reading only the bands
+     * around the paths when the stack is a virtual stack of an uncompressed file and the kymographs
+     * allow it, the stack of the ImagePlus otherwise. The outputs of the kymographs should have been prepared.
+     * @param ip the 2D+t stack
+     * @param kymos kymographs to build
+     * @return the stack to read the frames from
+     */
+    static ImageStack getSourceStack(ImagePlus ip, kymograph[] kymos){
+        for (int k=0; k<kymos.length; k++){
+            kymos[k].bytesRead=0;
+            kymos[k].frameBytes=0;
+            if (!kymos[k].mappedReading) return ip.getStack();
+        }
+        mappedBandStack band=mappedBandStack.open(ip, kymos);
+        return band==null?ip.getStack():band;
+    }
+    
+    /**
+     * Reads each time point of a stack once and feeds it to all the kymographs, which outputs
+     * should have been prepared. Time points are spread over several threads if requested, all the time
+     * points of a bin of the outputs being processed in order by the same thread, so that the outputs
+     * don't depend on the number of threads.
+     * Frames of virtual stacks are streamed: they are decoded in order on a background thread,
+     * sampled, then discarded, so that only a few of them are held in memory at once.
+     * @param stack the 2D+t stack
+     * @param kymos kymographs to build, all drawn on the same image with the same projection along z and temporal sampling
+     * @param nThreads number of threads to use
+     * @param prefetch number of time points of a virtual stack decoded ahead (0 to read them without background thread)
+     */
+    static void processFrames(ImageStack stack, kymograph[] kymos, int nThreads, int prefetch){
+        int[][] planeIndexes=kymos[0].getPlaneIndexes();
+        int nTimePoints=planeIndexes.length;
+        int binning=kymos[0].binning;
+        int nRows=nTimePoints/binning;
+        int nWorkers=Math.min(nThreads, nTimePoints);
+        frameStreamer streamer=null;
+        if (stack.isVirtual() && prefetch>0){
+            streamer=new frameStreamer(stack, planeIndexes, prefetch);
+            streamer.start();
+        }
+        if (nWorkers<=1){
+            try{
+                (streamer==null?new frameWorker(stack, planeIndexes, kymos, 1, nTimePoints):new frameWorker(streamer, kymos)).run();
+            }finally{
+                if (streamer!=null) streamer.stop();
+            }
+        }else{
+            ExecutorService pool=Executors.newFixedThreadPool(nWorkers);
+            try{
+                ArrayList<Future<?>> blocks=new ArrayList<Future<?>>();
+                if (streamer==null){
+                    int nBlocks=Math.min(nRows, 4*nWorkers);
+                    for (int i=0; i<nBlocks; i++) blocks.add(pool.submit(new frameWorker(stack, planeIndexes, kymos, 1+i*nRows/nBlocks*binning, (i+1)*nRows/nBlocks*binning)));
+                }else{
+                    for (int i=0; i<nWorkers; i++) blocks.add(pool.submit(new frameWorker(streamer, kymos)));
+                }
+                for (int i=0; i<blocks.size(); i++) blocks.get(i).get();
+            }catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("kymograph: generation has been interrupted.", e);
+            }catch (ExecutionException e){
+                throw new RuntimeException("kymograph: generation failed.", e.getCause());
+            }finally{
+                pool.shutdownNow();
+                if (streamer!=null) streamer.stop();
+            }
+        }
+        if (stack instanceof mappedBandStack){
+            mappedBandStack band=(mappedBandStack) stack;
+            band.close();
+            int nPlanes=0;
+            for (int t=0; t<nTimePoints; t++) nPlanes+=planeIndexes[t].length;
+            for (int k=0; k<kymos.length; k++){
+                kymos[k].bytesRead=band.getBytesRead();
+                kymos[k].frameBytes=band.getFrameBytes(nPlanes);
+            }
+        }
+    }
+    
+    /**
+     * frameWorker reads time points, either a contiguous block of them or those delivered by a frameStreamer,
+     * a bin at a time, and feeds each of them to all the kymographs.
+     * Frames are read from the ImageStack: neither the slice pointer nor the Roi of the ImagePlus are used.
+     */
+    static class frameWorker implements Runnable{
+        /**The 2D+t stack**/
+        ImageStack stack;
+        /**Indexes within the stack of the planes to read, for each time point**/
+        int[][] planeIndexes;
+        /**Streamer delivering the frames (null if the frames are read from the stack)**/
+        frameStreamer streamer=null;
+        /**Kymographs to build**/
+        kymograph[] kymos;
+        /**First time point to process (1-based)**/
+        int first;
+        /**Last time point to process (1-based)**/
+        int last;
+        /**Buffers receiving the straightened images, per kymograph and per channel**/
+        float[][][] straightPixels;
+        /**Buffers used to sample additional z planes, one per kymograph**/
+        float[][] zPixels;
+        /**Buffers receiving the lines of the kymographs before their conversion to the output bit depth, one per kymograph**/
+        float[][] lines;
+        /**Projections used to build the lines of the kymographs, one per kymograph**/
+        kymoProjection[] proj;
+        
+        /**
+         * Creates a new frameWorker reading a block of time points from a stack
+         * @param stack the 2D+t stack
+         * @param planeIndexes indexes within the stack of the planes to read, for each time point
+         * @param kymos kymographs to build
+         * @param first first time point to process (1-based)
+         * @param last last time point to process (1-based)
+         */
+        frameWorker(ImageStack stack, int[][] planeIndexes, kymograph[] kymos, int first, int last){
+            this.stack=stack;
+            this.planeIndexes=planeIndexes;
+            this.kymos=kymos;
+            this.first=first;
+            this.last=last;
+        }
+        
+        /**
+         * Creates a new frameWorker processing the time points delivered by a frameStreamer
+         * @param streamer the frameStreamer delivering the frames
+         * @param kymos kymographs to build
+         */
+        frameWorker(frameStreamer streamer, kymograph[] kymos){
+            this.streamer=streamer;
+            this.stack=streamer.stack;
+            this.kymos=kymos;
+        }
+        
+        public void run(){
+            straightPixels=new float[kymos.length][][];
+            zPixels=new float[kymos.length][];
+            lines=new float[kymos.length][];
+            proj=new kymoProjection[kymos.length];
+            for (int k=0; k<kymos.length; k++){
+                straightPixels[k]=new float[kymos[k].nChannels][];
+                if (kymos[k].zProjection!=CURRENT_Z && kymos[k].nZ>1) zPixels[k]=new float[kymos[k].nbPix*kymos[k].sampler.getWidth()];
+                if (kymos[k].outputDepth!=32 || kymos[k].streamingFolder!=null) lines[k]=new float[kymos[k].nbPix];
+                proj[k]=new kymoProjection(kymos[k].projection.method, kymos[k].projection.percentile);
+            }
+            if (streamer==null){
+                for (int t=first; t<=last; t++){
+                    long start=System.nanoTime();
+                    int[] indexes=planeIndexes[t-1];
+                    Object[] planes=new Object[indexes.length];
+                    for (int i=0; i<indexes.length; i++){
+                        if (stack.isVirtual()){
+                            synchronized(stack){
+                                planes[i]=stack.getPixels(indexes[i]);
+                            }
+                        }else{
+                            planes[i]=stack.getPixels(indexes[i]);
+                        }
+                    }
+                    addReadingTime(System.nanoTime()-start);
+                    process(planes, t);
+                }
+            }else{
+                try{
+                    while (true){
+                        long start=System.nanoTime();
+                        frameStreamer.frame[] bin=streamer.next(kymos[0].binning);
+                        addReadingTime(System.nanoTime()-start);
+                        if (bin==null) break;
+                        for (int i=0; i<bin.length; i++) process(bin[i].planes, bin[i].timePoint);
+                    }
+                }catch (InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("kymograph: generation has been interrupted.", e);
+                }
+            }
+        }
+        
+        /**
+         * Feeds a time point to all the kymographs, then hands its planes back to the stack if it reuses them
+         * @param planes pixels arrays of the planes of the time point, ordered by channel, then z
+         * @param timePoint index of the time point (1-based)
+         */
+        private void process(Object[] planes, int timePoint){
+            for (int k=0; k<kymos.length; k++) kymos[k].processTimePoint(planes, timePoint, straightPixels[k], zPixels[k], lines[k], proj[k]);
+            if (stack instanceof mappedBandStack) for (int i=0; i<planes.length; i++) ((mappedBandStack) stack).recycle(planes[i]);
+        }
+        
+        /**
+         * Adds the time spent reading a time point to the sampling time of all the kymographs,
+         * each of which would have had to read it if built on its own
+         * @param time time spent, in nanoseconds
+         */
+        private void addReadingTime(long time){
+            for (int k=0; k<kymos.length; k++) kymos[k].samplingTime.addAndGet(time);
+        }
+    }
+    
+    /**
+     * Reports on the last call to getKymos: time spent, split between reading and sampling the frames
+     * and filling the outputs, and an estimate of the time saved over building each output through its own call.
+     * The saving is not measured: it is extrapolated from the measured reading and sampling time, assuming
+     * each separate call would read and sample all the frames again, at the same cost, while filling its own output only.
+     * @return the report, as a String
+     */
+    public String getLastReport(){
+        if (nbOutputs==0) return "";
+        double sampling=samplingTime.get()/1e6;
+        double filling=fillingTime.get()/1e6;
+        double saving=(nbOutputs-1)*sampling;
+        String report=nbOutputs+" kymo output(s) built in "+elapsedTime+" ms, "+nbSampled+" frames sampled once: "
+                +IJ.d2s(sampling, 0)+" ms reading and sampling, "+IJ.d2s(filling, 0)+" ms filling the outputs (summed over threads)";
+        if (nbOutputs>1) report+=", estimated saving over one call per output: "+IJ.d2s(saving, 0)+" ms (estimated ratio x"+IJ.d2s((saving+sampling+filling)/Math.max(sampling+filling, 1e-6), 2)+")";
+        if (frameBytes!=0) report+=", "+IJ.d2s(bytesRead/1048576.0, 2)+" MB read instead of "+IJ.d2s(frameBytes/1048576.0, 2);
+        report+="; "+geometryCache.getReport();
+        return report;
+    }
 
     /**
-     * Calculates the calibration of the kymograph, based on the 2D+t stack's calibration
+     * Calculates the calibration of the kymograph, based on the 2D+t stack's calibration,
+     * and the sampling geometry of the path
      * @param width width of the path (used for the image straightening)
      */
      private void calcCalibAndGetKymoPathCoord(int width){
-        ip.setRoi(path);
-        st.straighten(ip, path, width);
-        path=ip.getRoi();
-        Polygon pRoi=path.getPolygon();
+        sampler=geometryCache.get(ip, path, width);
+        FloatPolygon pRoi=sampler.getCoordinates();
         x=pRoi.xpoints;
         y=pRoi.ypoints;
 
-        length=path.getLength();
-        nbPix=pRoi.npoints;
+        length=sampler.getLength();
+        nbPix=sampler.getNbPix();
         
         cal=new Calibration();
         cal.setXUnit(unit);
         cal.pixelWidth=length/nbPix;
         cal.setYUnit(timeUnit);
-        cal.pixelHeight=timeIntervalle;
+        cal.pixelHeight=timeIntervalle*stride*binning;
         cal.setTimeUnit(timeUnit);
-        cal.frameInterval=timeIntervalle;
+        cal.frameInterval=timeIntervalle*stride*binning;
         
         
-        infoString="<KymoPathInfo>\n<x>";
-        for (int i=0; i<x.length; i++) infoString+=x[i]+"\t";
-        infoString+="</x>\n<y>";
-        for (int i=0; i<y.length; i++) infoString+=y[i]+"\t";
-        infoString+="</y>\n</KymoPathInfo>";
+        infoString=new pathCodec(compressPathInfo).add(x, y, nbPix).build();
     }
     
-    /**
-     * Doees the maximum intensity projection of an ImageProcessor along the y-axis
-     * @param in input ImageProcessor
-     * @return a float array containing maximum intensty values
-     */
-     private float[] yProj(ImageProcessor in){
-        float[] out=new float[in.getWidth()];
-        float[][] inArray=in.getFloatArray();
-        
-        for (int i=0; i<out.length; i++){
-            float[] tmp=inArray[i];
-            Arrays.sort(tmp);
-            out[i]=tmp[tmp.length-1];
-        }
-        
-        return out;
-    }
-
     /**
      * Kills Rois, reset display, set calibration and "Info" property on the input ImagePlus
      * @param result input ImagePlus
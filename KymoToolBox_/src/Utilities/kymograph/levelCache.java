@@ -0,0 +1,112 @@
+/**
+ *
+ *  levelCache v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.process.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * levelCache keeps the levels of the scale-space of a single image (Gaussian blurs keyed by their diameter,
+ * or starlet levels keyed by their index), so that any sum of wavelet planes, from start to stop, is a single
+ * subtraction of two cached levels: tuning start and stop in a dialog with preview doesn't blur the image again.
+ * Starlet levels are all kept as they are passed. The least recently used level is discarded once the levels
+ * exceed a quarter of the memory available to ImageJ.
+ * @author Fabrice P. Cordelieres
+ */
+public class levelCache {
+    /**Filter computing the levels, setting the kind of wavelet and the backend**/
+    improveKymo filter;
+    /**Copy of the input image**/
+    ImageProcessor input;
+    /**Starlet transform, moving forward as levels are requested (null until needed)**/
+    starlet levels=null;
+    /**Maximum number of levels kept**/
+    int capacity;
+    /**Levels, from the least to the most recently used**/
+    LinkedHashMap<Integer, float[]> cache=new LinkedHashMap<Integer, float[]>(16, 0.75f, true){
+        private static final long serialVersionUID=1L;
+
+        protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest){
+            return size()>capacity;
+        }
+    };
+
+    /**
+     * Creates a new, empty, levelCache
+     * @param filter filter computing the levels (its settings should not be changed afterwards)
+     * @param iproc the input ImageProcessor (copied, so that it may be modified afterwards)
+     */
+    public levelCache(improveKymo filter, ImageProcessor iproc){
+        this.filter=filter;
+        input=iproc.duplicate();
+        capacity=(int) Math.max(2, IJ.maxMemory()/4/(4L*iproc.getPixelCount()));
+    }
+
+    /**
+     * Retrieves a level from the cache, computing it if needed
+     * @param n index of the level (0 for the input itself)
+     * @return the level, as a float array (shared, not to be modified)
+     */
+    public synchronized float[] getLevel(int n){
+        float[] level=cache.get(n);
+        if (level!=null) return level;
+        if (filter.wavelet==improveKymo.STARLET){
+            if (levels==null || levels.level>n) levels=new starlet(input);
+            level=levels.current.clone();
+            cache.put(levels.level, level);
+            while (levels.level<n){
+                levels.nextLevel();
+                level=levels.current.clone();
+                cache.put(levels.level, level);
+            }
+            return level;
+        }
+        level=(float[]) filter.getLevel(input, n).getPixels();
+        cache.put(n, level);
+        return level;
+    }
+
+    /**
+     * Sums the start to stop wavelet planes of the image, as level start-1 minus level stop. When the filter would
+     * compute the sum otherwise (in the frequency domain, or plane by plane), it is computed that way, without the
+     * cache, so that the sum is the one the filter returns
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @param range array receiving the min and max of wavelet plane start (null if not needed)
+     * @return a new FloatProcessor containing the sum
+     */
+    public synchronized FloatProcessor getSum(int start, int stop, double[] range){
+        if (filter.wavelet==improveKymo.GAUSSIAN && (!filter.telescoping || filter.sumUsesFFT(input, start, stop, range!=null))) return (FloatProcessor) filter.getSum(input, start, stop, range);
+        if (range!=null) improveKymo.getRange(getLevel(start-1), getLevel(start), range);
+        float[] sum=getLevel(start-1).clone();
+        ImageProcessorCalculator.calculate(sum, getLevel(stop), ImageProcessorCalculator.SUBSTRACT);
+        FloatProcessor result=new FloatProcessor(input.getWidth(), input.getHeight(), sum, null);
+        result.resetMinAndMax();
+        return result;
+    }
+}
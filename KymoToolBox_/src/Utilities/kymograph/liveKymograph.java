@@ -0,0 +1,360 @@
+/**
+ *
+ *  liveKymograph v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.gui.*;
+import ij.measure.*;
+import ij.process.*;
+
+import java.awt.Polygon;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * liveKymograph builds a kymograph incrementally, during an ongoing acquisition: the sampling
+ * geometry of the path is computed once, then each new frame is sampled and appended as a new
+ * line. Frames are either pushed through addFrame, or found by watching a folder for new TIFF files.
+ * Lines are stored in a ring buffer (only the last lines are kept) or in a growable buffer (all
+ * lines are kept): in both cases, appending a frame takes a constant time, whatever the length of the recording.
+ * The displayed kymograph shares the buffer, so that refreshing it copies nothing: lines not recorded yet are NaN
+ * and, for a ring buffer, the latest line overwrites the oldest one, getKymograph returning the lines in order.
+ * @author Fabrice P. Cordelieres
+ */
+public class liveKymograph {
+    /**Sampling geometry of the path**/
+    pathSampler sampler;
+    /**Projection used along the width of the path to build the kymograph**/
+    kymoProjection projection=new kymoProjection(kymoProjection.MAX);
+    /**Number of pixels composing the path**/
+    int nbPix;
+    /**Width of the images to sample**/
+    int imgWidth;
+    /**Height of the images to sample**/
+    int imgHeight;
+    /**Maximum number of lines kept in the ring buffer, 0 if the buffer grows with the recording**/
+    int capacity;
+    /**Lines of the kymograph, nbPix values each**/
+    float[] lines;
+    /**Number of frames appended so far**/
+    int nFrames=0;
+    /**Smallest value appended so far, used as the minimum of the display range**/
+    float min=Float.MAX_VALUE;
+    /**Largest value appended so far, used as the maximum of the display range**/
+    float max=-Float.MAX_VALUE;
+    /**Buffer receiving the straightened images**/
+    float[] straightPixels;
+    /**Stores the calibration to be applied to the kymograph**/
+    Calibration cal=new Calibration();
+    /**Contains the "KymoPathInfo" string to be added to the kymograph's "Info" property**/
+    String infoString;
+    /**Title of the kymograph**/
+    String title;
+    /**True if the kymograph should be displayed**/
+    volatile boolean displayed=false;
+    /**Displayed kymograph (null if not shown yet)**/
+    ImagePlus display=null;
+    /**Background thread watching a folder for new files (null if none)**/
+    Thread watcher=null;
+    /**False once the folder should not be watched anymore**/
+    volatile boolean watching=false;
+
+    /**
+     * Creates a new liveKymograph
+     * @param ip image from which to take the dimensions and the calibration of the frames to come (typically the first frame)
+     * @param roi Roi containing the path along which to draw the kymograph (line, freeline or polyline)
+     * @param width width of the path (used for the image straightening)
+     * @param capacity maximum number of lines to keep (the oldest lines are then discarded), 0 to keep all the lines
+     */
+    public liveKymograph(ImagePlus ip, Roi roi, int width, int capacity){
+        if (roi==null) throw new IllegalArgumentException("liveKymograph expects a ROI to be defined on the image.");
+        Roi path=roi;
+        if (path.getType()==Roi.LINE || path.getType()==Roi.FREELINE){
+            Polygon pol=path.getPolygon();
+            path=new PolygonRoi(pol.xpoints, pol.ypoints, pol.npoints, Roi.POLYLINE);
+        }
+        if (path.getType()!=Roi.POLYLINE) throw new IllegalArgumentException("liveKymograph expect a line, freeline or polyline ROI.");
+        if (ip.getBitDepth()==24) throw new IllegalArgumentException("liveKymograph doesn't work on RGB images.");
+
+        sampler=geometryCache.get(ip, path, width);
+        nbPix=sampler.getNbPix();
+        imgWidth=ip.getWidth();
+        imgHeight=ip.getHeight();
+        this.capacity=Math.max(0, capacity);
+        if ((long) nbPix*this.capacity>Integer.MAX_VALUE-8) throw new IllegalArgumentException("liveKymograph: "+capacity+" lines of "+nbPix+" pixels can't be held in memory.");
+        lines=new float[nbPix*(this.capacity==0?64:this.capacity)];
+        Arrays.fill(lines, Float.NaN);
+        straightPixels=new float[nbPix*sampler.getWidth()];
+        title="Live kymograph from "+ip.getTitle();
+
+        Calibration ipCal=ip.getCalibration();
+        cal.setXUnit(ipCal.getUnit());
+        cal.pixelWidth=sampler.getLength()/nbPix;
+        cal.setYUnit(ipCal.getTimeUnit());
+        cal.pixelHeight=ipCal.frameInterval;
+        cal.setTimeUnit(ipCal.getTimeUnit());
+        cal.frameInterval=ipCal.frameInterval;
+        FloatPolygon coord=sampler.getCoordinates();
+        infoString=new pathCodec(false).add(coord.xpoints, coord.ypoints, nbPix).build();
+    }
+
+    /**
+     * Sets the projection used along the width of the path to build the kymograph
+     * @param projection projection method to use along the width of the path (see kymoProjection)
+     * @param percentile percentile to retrieve, between 0 and 100 (only used by the kymoProjection.PERCENTILE method)
+     */
+    public synchronized void setProjection(int projection, double percentile){
+        this.projection=new kymoProjection(projection, percentile);
+    }
+
+    /**
+     * Samples a new frame and appends it as a new line of the kymograph
+     * @param pixels pixels array of the frame (byte[], short[] or float[]), with the dimensions of the image the liveKymograph has been created from
+     */
+    public synchronized void addFrame(Object pixels){
+        sampler.sample(pixels, straightPixels);
+        int line;
+        if (capacity==0){
+            if ((long) (nFrames+1)*nbPix>lines.length) grow();
+            line=nFrames;
+        }else{
+            line=nFrames%capacity;
+        }
+        int offset=line*nbPix;
+        projection.project(straightPixels, nbPix, sampler.getWidth(), lines, offset);
+        for (int i=offset; i<offset+nbPix; i++){
+            float v=lines[i];
+            if (v<min) min=v;
+            if (v>max) max=v;
+        }
+        nFrames++;
+    }
+
+    /**
+     * Doubles the number of lines of the growable buffer, the new lines being set to NaN
+     */
+    private void grow(){
+        int nLines=lines.length/nbPix;
+        long newLines=Math.min(2L*nLines, (Integer.MAX_VALUE-8)/nbPix);
+        if (newLines<=nFrames) throw new RuntimeException("liveKymograph: the kymograph can't hold more than "+nFrames+" lines, use a ring buffer.");
+        lines=Arrays.copyOf(lines, (int) newLines*nbPix);
+        Arrays.fill(lines, nLines*nbPix, lines.length, Float.NaN);
+    }
+
+    /**
+     * Samples a new frame and appends it as a new line of the kymograph
+     * @param ip ImageProcessor containing the frame, with the dimensions of the image the liveKymograph has been created from
+     */
+    public void addFrame(ImageProcessor ip){
+        if (ip.getWidth()!=imgWidth || ip.getHeight()!=imgHeight) throw new IllegalArgumentException("liveKymograph: the frame doesn't have the expected dimensions.");
+        addFrame(ip.getPixels());
+    }
+
+    /**
+     * Samples all the slices of an image and appends them as new lines of the kymograph
+     * @param ip ImagePlus containing the frames, with the dimensions of the image the liveKymograph has been created from
+     */
+    public void addFrames(ImagePlus ip){
+        ImageStack is=ip.getStack();
+        for (int i=1; i<=is.getSize(); i++) addFrame(is.getProcessor(i));
+    }
+
+    /**
+     * Returns the number of frames appended so far
+     * @return the number of frames appended so far
+     */
+    public synchronized int getFrameCount(){
+        return nFrames;
+    }
+
+    /**
+     * Builds a snapshot of the kymograph: the lines appended so far (or the last ones, for a
+     * ring buffer), from the oldest to the latest
+     * @return the kymograph as an ImagePlus, null if no frame has been appended yet
+     */
+    public synchronized ImagePlus getKymograph(){
+        if (nFrames==0) return null;
+        ImagePlus result=new ImagePlus(title, new FloatProcessor(nbPix, getNbLines(), copyLines(), null));
+        setProperties(result);
+        return result;
+    }
+
+    /**
+     * Shows the kymograph: the displayed image is refreshed by updateDisplay, and after
+     * each batch of new files while watching a folder. If no frame has been appended yet,
+     * the kymograph is shown as soon as the first frame is available.
+     */
+    public void show(){
+        displayed=true;
+        updateDisplay();
+    }
+
+    /**
+     * Refreshes the displayed kymograph with the lines appended since the last refresh: as the displayed image
+     * shares the buffer, only the display range is updated, the image being replaced when the buffer has grown
+     */
+    public void updateDisplay(){
+        if (!displayed) return;
+        FloatProcessor fp=null;
+        double displayMin, displayMax;
+        synchronized(this){
+            if (nFrames==0) return;
+            if (display==null || display.getProcessor().getPixels()!=lines) fp=new FloatProcessor(nbPix, lines.length/nbPix, lines, null);
+            displayMin=min;
+            displayMax=max;
+        }
+        if (display==null){
+            display=new ImagePlus(title, fp);
+            setProperties(display);
+            display.setDisplayRange(displayMin, displayMax);
+            display.show();
+            return;
+        }
+        if (fp!=null) display.setProcessor(fp);
+        display.setDisplayRange(displayMin, displayMax);
+        display.updateAndDraw();
+    }
+
+    /**
+     * Replaces the displayed kymograph by a snapshot holding the recorded lines only, from the oldest to
+     * the latest (see getKymograph), typically once the acquisition is over
+     */
+    public void finishDisplay(){
+        if (display==null) return;
+        ImagePlus snapshot=getKymograph();
+        if (snapshot==null) return;
+        display.setProcessor(snapshot.getProcessor());
+        display.resetDisplayRange();
+        display.updateAndDraw();
+    }
+
+    /**
+     * Starts watching a folder: TIFF files appearing in it are opened in alphabetical order, once
+     * their size is stable, and all their slices are appended to the kymograph. Files present
+     * before the call are processed too.
+     * @param folder path to the folder to watch
+     * @param interval time between two scans of the folder, in milliseconds
+     */
+    public void watch(String folder, final long interval){
+        final File dir=new File(folder);
+        if (!dir.isDirectory()) throw new IllegalArgumentException("liveKymograph: "+folder+" is not a folder.");
+        stopWatching();
+        watching=true;
+        watcher=new Thread(new Runnable(){
+            public void run(){
+                HashMap<String, Long> pending=new HashMap<String, Long>();
+                while (watching){
+                    if (scan(dir, pending)>0) updateDisplay();
+                    try{
+                        Thread.sleep(interval);
+                    }catch (InterruptedException e){
+                        return;
+                    }
+                }
+            }
+        }, "KymoToolBox live kymograph");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops watching the folder
+     */
+    public void stopWatching(){
+        watching=false;
+        if (watcher!=null) watcher.interrupt();
+        watcher=null;
+    }
+
+    /**
+     * Scans the watched folder once, appending the content of the new files whose size has not
+     * changed since the previous scan
+     * @param dir the watched folder
+     * @param pending size of the files found so far, -1 once they have been processed
+     * @return the number of files processed during this scan
+     */
+    private int scan(File dir, HashMap<String, Long> pending){
+        String[] names=dir.list();
+        if (names==null) return 0;
+        Arrays.sort(names);
+        int nProcessed=0;
+        for (int i=0; i<names.length && watching; i++){
+            String name=names[i].toLowerCase();
+            if (!name.endsWith(".tif") && !name.endsWith(".tiff")) continue;
+            Long previous=pending.get(names[i]);
+            if (previous!=null && previous.longValue()==-1) continue;
+            long size=new File(dir, names[i]).length();
+            if (previous==null || previous.longValue()!=size || size==0){
+                pending.put(names[i], size);
+                continue;
+            }
+            ImagePlus frames=IJ.openImage(new File(dir, names[i]).getPath());
+            if (frames==null){
+                IJ.log("Live Kymo: "+names[i]+" could not be opened.");
+            }else{
+                try{
+                    addFrames(frames);
+                }catch (IllegalArgumentException e){
+                    IJ.log("Live Kymo: "+names[i]+" skipped ("+e.getMessage()+")");
+                }
+            }
+            pending.put(names[i], Long.valueOf(-1));
+            nProcessed++;
+        }
+        return nProcessed;
+    }
+
+    /**
+     * Returns the number of lines currently held by the kymograph
+     * @return the number of lines
+     */
+    private int getNbLines(){
+        return capacity==0?nFrames:Math.min(nFrames, capacity);
+    }
+
+    /**
+     * Copies the lines currently held by the kymograph, from the oldest to the latest
+     * @return a new array containing the lines
+     */
+    private float[] copyLines(){
+        int nbLines=getNbLines();
+        float[] pixels=new float[nbPix*nbLines];
+        int first=capacity==0?0:(nFrames<=capacity?0:nFrames%capacity);
+        int nFirst=nbLines-first;
+        System.arraycopy(lines, first*nbPix, pixels, 0, nFirst*nbPix);
+        System.arraycopy(lines, 0, pixels, nFirst*nbPix, first*nbPix);
+        return pixels;
+    }
+
+    /**
+     * Sets the calibration and the "Info" property of the kymograph
+     * @param result kymograph on which to set the properties
+     */
+    private void setProperties(ImagePlus result){
+        result.setCalibration(cal);
+        result.setProperty("Info", infoString);
+        result.resetDisplayRange();
+    }
+}
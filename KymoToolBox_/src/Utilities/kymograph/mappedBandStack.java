@@ -0,0 +1,317 @@
+/**
+ *
+ *  mappedBandStack v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.io.*;
+import ij.plugin.*;
+import ij.process.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * mappedBandStack reads the frames of an uncompressed TIFF or raw file directly from the file,
+ * only touching the pixels lying within the band sampled around one or several paths: for each
+ * row of the frame, only the runs of columns used by the bilinear interpolation are read, by
+ * positional reads into a buffer reused from one run to the next.
+ * Pixels outside the band are left to 0 in the returned arrays, so that they may be sampled
+ * by pathSampler as if the whole frame had been decoded. Arrays handed back through recycle are
+ * reused for the next frames: the band being the same for all the frames, it is overwritten, while
+ * the pixels outside it stay 0.
+ * @author Fabrice P. Cordelieres
+ */
+public class mappedBandStack extends VirtualStack{
+    /**The file containing the frames**/
+    File file;
+    /**Channel used to map the file**/
+    FileChannel channel;
+    /**Offset of each frame within the file, in bytes**/
+    long[] offsets;
+    /**Width of the frames**/
+    int width;
+    /**Height of the frames**/
+    int height;
+    /**File type of the frames, as defined in FileInfo (GRAY8, GRAY16_SIGNED, GRAY16_UNSIGNED or GRAY32_FLOAT)**/
+    int fileType;
+    /**Number of bytes per pixel**/
+    int bytesPerPixel;
+    /**Byte order of the file**/
+    ByteOrder order;
+    /**Runs of columns to read for each row, as pairs of first and last columns (empty if the row is not read)**/
+    int[][] runs;
+    /**First row to read**/
+    int firstRow;
+    /**Last row to read**/
+    int lastRow;
+    /**Buffer receiving the bytes of a run of columns**/
+    ByteBuffer buffer;
+    /**Pixels arrays handed back once sampled, to be reused by the next frames**/
+    ArrayDeque<Object> spare=new ArrayDeque<Object>();
+    /**Number of bytes read so far, counted in whole pages**/
+    long bytesRead=0;
+    
+    /**Minimum number of unused pixels between two runs of columns read separately**/
+    static final int MIN_GAP=16;
+    /**Size of the pages files are read by, in bytes: reading a single byte costs a whole page**/
+    static final int PAGE_SIZE=4096;
+    /**Maximum number of pixels arrays kept for reuse**/
+    static final int MAX_SPARE=16;
+
+    /**
+     * Creates a new mappedBandStack
+     * @param fi information about the file, as returned by ImagePlus.getOriginalFileInfo
+     * @param offsets offset of each frame within the file, in bytes
+     * @param runs runs of columns to read for each row, as pairs of first and last columns
+     * @throws IOException if the file could not be opened
+     */
+    mappedBandStack(FileInfo fi, long[] offsets, int[][] runs) throws IOException{
+        super(fi.width, fi.height, null, null);
+        file=new File(fi.directory, fi.fileName);
+        channel=new RandomAccessFile(file, "r").getChannel();
+        this.offsets=offsets;
+        width=fi.width;
+        height=fi.height;
+        fileType=fi.fileType;
+        bytesPerPixel=fi.getBytesPerPixel();
+        order=fi.intelByteOrder?ByteOrder.LITTLE_ENDIAN:ByteOrder.BIG_ENDIAN;
+        this.runs=runs;
+        firstRow=-1;
+        int maxLength=0;
+        for (int y=0; y<height; y++){
+            if (runs[y].length==0) continue;
+            if (firstRow==-1) firstRow=y;
+            lastRow=y;
+            for (int r=0; r<runs[y].length; r+=2) maxLength=Math.max(maxLength, runs[y][r+1]-runs[y][r]+1);
+        }
+        buffer=ByteBuffer.allocate(maxLength*bytesPerPixel);
+        buffer.order(order);
+    }
+
+    /**
+     * Creates a mappedBandStack reading the frames of an ImagePlus along the paths of some kymographs,
+     * provided its stack is a virtual stack of an uncompressed TIFF or raw file
+     * @param ip the ImagePlus
+     * @param kymos kymographs to be built, which sampling geometry has been computed
+     * @return a new mappedBandStack, or null if the frames can't be read that way
+     */
+    static mappedBandStack open(ImagePlus ip, kymograph[] kymos){
+        if (!(ip.getStack() instanceof FileInfoVirtualStack)) return null;
+        FileInfo fi=ip.getOriginalFileInfo();
+        if (fi==null || fi.directory==null || fi.fileName==null) return null;
+        if (fi.compression>FileInfo.COMPRESSION_NONE) return null;
+        if (fi.fileType!=FileInfo.GRAY8 && fi.fileType!=FileInfo.GRAY16_SIGNED && fi.fileType!=FileInfo.GRAY16_UNSIGNED && fi.fileType!=FileInfo.GRAY32_FLOAT) return null;
+        if (fi.width!=ip.getWidth() || fi.height!=ip.getHeight()) return null;
+
+        try{
+            long[] offsets=getOffsets(fi, ip.getStackSize());
+            if (offsets==null) return null;
+
+            boolean[] used=new boolean[fi.width*fi.height];
+            for (int k=0; k<kymos.length; k++) kymos[k].sampler.markUsedPixels(used);
+
+            return new mappedBandStack(fi, offsets, getRuns(used, fi.width, fi.height));
+        }catch (IOException e){
+            return null;
+        }
+    }
+
+    /**
+     * Groups the used pixels of each row into runs of columns. Runs separated by less than
+     * MIN_GAP unused pixels are merged, so that close runs are read at once.
+     * @param used one flag per pixel, true for the pixels to read
+     * @param width width of the frames
+     * @param height height of the frames
+     * @return the runs of columns to read for each row, as pairs of first and last columns
+     */
+    private static int[][] getRuns(boolean[] used, int width, int height){
+        int[][] runs=new int[height][];
+        int[] buffer=new int[width+1];
+        for (int y=0; y<height; y++){
+            int n=0;
+            int x=0;
+            while (x<width){
+                if (!used[y*width+x]){
+                    x++;
+                    continue;
+                }
+                int start=x;
+                int end=x;
+                while (x<width){
+                    if (used[y*width+x]){
+                        end=x;
+                    }else if (x-end>MIN_GAP){
+                        break;
+                    }
+                    x++;
+                }
+                buffer[n++]=start;
+                buffer[n++]=end;
+            }
+            runs[y]=new int[n];
+            System.arraycopy(buffer, 0, runs[y], 0, n);
+        }
+        return runs;
+    }
+
+    /**
+     * Retrieves the offset of each frame within the file: from the image file directories
+     * of a TIFF file, or from the offset and the gap between images of a raw file
+     * @param fi information about the file
+     * @param nFrames expected number of frames
+     * @return the offsets, in bytes, or null if they could not be retrieved
+     * @throws IOException if the file could not be read
+     */
+    private static long[] getOffsets(FileInfo fi, int nFrames) throws IOException{
+        long frameSize=(long) fi.width*fi.height*fi.getBytesPerPixel();
+        long[] offsets=new long[nFrames];
+        if (fi.fileFormat==FileInfo.TIFF){
+            FileInfo[] ifds=new TiffDecoder(fi.directory, fi.fileName).getTiffInfo();
+            if (ifds==null || ifds.length==0) return null;
+            if (ifds.length==1){
+                for (int i=0; i<nFrames; i++) offsets[i]=ifds[0].getOffset()+i*(frameSize+ifds[0].getGap());
+            }else{
+                if (ifds.length<nFrames) return null;
+                for (int i=0; i<nFrames; i++){
+                    if (ifds[i].compression>FileInfo.COMPRESSION_NONE || ifds[i].width!=fi.width || ifds[i].height!=fi.height) return null;
+                    offsets[i]=ifds[i].getOffset();
+                }
+            }
+        }else if (fi.fileFormat==FileInfo.RAW){
+            for (int i=0; i<nFrames; i++) offsets[i]=fi.getOffset()+i*(frameSize+fi.getGap());
+        }else{
+            return null;
+        }
+        if (offsets[nFrames-1]+frameSize>new File(fi.directory, fi.fileName).length()) return null;
+        return offsets;
+    }
+
+    /**
+     * Reads the band of a frame
+     * @param n index of the frame (1-based)
+     * @return the pixels array of the frame (byte[], short[] or float[]), pixels outside the band being set to 0
+     */
+    public synchronized Object getPixels(int n){
+        Object pixels=spare.poll();
+        if (pixels==null){
+            switch (fileType){
+                case FileInfo.GRAY8: pixels=new byte[width*height]; break;
+                case FileInfo.GRAY32_FLOAT: pixels=new float[width*height]; break;
+                default: pixels=new short[width*height]; break;
+            }
+        }
+        if (firstRow==-1) return pixels;
+
+        long rowBytes=(long) width*bytesPerPixel;
+        long lastPage=-1;
+        try{
+            for (int y=firstRow; y<=lastRow; y++){
+                for (int r=0; r<runs[y].length; r+=2){
+                    int start=y*width+runs[y][r];
+                    int length=runs[y][r+1]-runs[y][r]+1;
+                    long position=offsets[n-1]+y*rowBytes+(long) runs[y][r]*bytesPerPixel;
+                    buffer.clear();
+                    buffer.limit(length*bytesPerPixel);
+                    while (buffer.hasRemaining()){
+                        if (channel.read(buffer, position+buffer.position())<0) throw new EOFException();
+                    }
+                    buffer.flip();
+                    switch (fileType){
+                        case FileInfo.GRAY8:
+                            buffer.get((byte[]) pixels, start, length);
+                            break;
+                        case FileInfo.GRAY32_FLOAT:
+                            buffer.asFloatBuffer().get((float[]) pixels, start, length);
+                            break;
+                        default:
+                            short[] px=(short[]) pixels;
+                            buffer.asShortBuffer().get(px, start, length);
+                            if (fileType==FileInfo.GRAY16_SIGNED) for (int i=start; i<start+length; i++) px[i]=(short) (px[i]+32768);
+                            break;
+                    }
+                    long firstPage=Math.max(position/PAGE_SIZE, lastPage+1);
+                    long endPage=(position+length*bytesPerPixel-1)/PAGE_SIZE;
+                    if (endPage>=firstPage) bytesRead+=(endPage-firstPage+1)*PAGE_SIZE;
+                    lastPage=Math.max(lastPage, endPage);
+                }
+            }
+        }catch (IOException e){
+            throw new RuntimeException("mappedBandStack: frame "+n+" could not be read from "+file.getName()+".", e);
+        }
+        return pixels;
+    }
+
+    /**
+     * Hands back a pixels array returned by getPixels once it is no longer used, so that it is reused for the next frames
+     * @param pixels the pixels array
+     */
+    public synchronized void recycle(Object pixels){
+        if (spare.size()<MAX_SPARE) spare.add(pixels);
+    }
+
+    public ImageProcessor getProcessor(int n){
+        Object pixels=getPixels(n);
+        if (pixels instanceof byte[]) return new ByteProcessor(width, height, (byte[]) pixels, null);
+        if (pixels instanceof short[]) return new ShortProcessor(width, height, (short[]) pixels, null);
+        return new FloatProcessor(width, height, (float[]) pixels, null);
+    }
+
+    public int getSize(){
+        return offsets.length;
+    }
+
+    public String getSliceLabel(int n){
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes read so far, ie the size of the file pages holding the bands of the frames read:
+     * a band touching every page of a frame costs as much as the whole frame
+     * @return the number of bytes read
+     */
+    public long getBytesRead(){
+        return bytesRead;
+    }
+
+    /**
+     * Returns the number of bytes a full decoding of the frames read so far would have needed
+     * @param nFrames number of frames read
+     * @return the number of bytes
+     */
+    public long getFrameBytes(int nFrames){
+        return (long) nFrames*width*height*bytesPerPixel;
+    }
+
+    /**
+     * Closes the file
+     */
+    public void close(){
+        try{
+            channel.close();
+        }catch (IOException e){
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ *
+ *  multiKymograph v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.gui.*;
+
+/**
+ * multiKymograph builds the kymographs of several paths drawn on the same 2D+t stack
+ * in a single pass: each frame is read once, then sampled along every path.
+ * @author Fabrice P. Cordelieres
+ */
+public class multiKymograph {
+    /**2D+t stack from which to draw the kymographs**/
+    ImagePlus ip;
+    /**One kymograph object per path**/
+    kymograph[] kymos;
+    /**Number of threads used to process the frames**/
+    int nThreads=1;
+    /**Number of frames of a virtual stack decoded ahead while the current frame is being sampled**/
+    int prefetch=4;
+    /**Time spent during the last call to getKymos, in milliseconds**/
+    long elapsedTime=0;
+
+    /**
+     * Creates a new multiKymograph object from an ImagePlus and an array of Rois
+     * @param ip 2D+t stack from which to draw the kymographs, as an ImagePlus
+     * @param rois Rois containing the paths along which to draw the kymographs (line, freeline or polyline), at least one
+     */
+    public multiKymograph(ImagePlus ip, Roi[] rois){
+        if (rois==null || rois.length==0) throw new IllegalArgumentException("multiKymograph expects at least one path.");
+        this.ip=ip;
+        kymos=new kymograph[rois.length];
+        for (int i=0; i<rois.length; i++) kymos[i]=new kymograph(ip, rois[i]);
+    }
+
+    /**
+     * Sets the projection used along the width of the paths to build the kymographs
+     * @param projection projection method to use along the width of the paths (see kymoProjection)
+     * @param percentile percentile to retrieve, between 0 and 100 (only used by the kymoProjection.PERCENTILE method)
+     */
+    public void setProjection(int projection, double percentile){
+        for (int i=0; i<kymos.length; i++) kymos[i].setProjection(projection, percentile);
+    }
+
+    /**
+     * Sets the projection used along z when the 2D+t stack is a hyperstack with several z planes per time point
+     * @param zProjection kymoProjection.MAX, kymoProjection.MEAN, kymoProjection.SUM, or kymograph.CURRENT_Z to only use the current z plane
+     */
+    public void setZProjection(int zProjection){
+        for (int i=0; i<kymos.length; i++) kymos[i].setZProjection(zProjection);
+    }
+
+    /**
+     * Sets the bit depth of the outputs (see kymograph.setNativeDepth)
+     * @param nativeDepth true to keep the bit depth of the 2D+t stack whenever possible, false to build 32-bit outputs
+     */
+    public void setNativeDepth(boolean nativeDepth){
+        for (int i=0; i<kymos.length; i++) kymos[i].setNativeDepth(nativeDepth);
+    }
+
+    /**
+     * Sets the layout of the kymoMontages (see kymograph.setMontageColumns)
+     * @param nColumns number of columns (1 to stack all the time points in a single column)
+     */
+    public void setMontageColumns(int nColumns){
+        for (int i=0; i<kymos.length; i++) kymos[i].setMontageColumns(nColumns);
+    }
+
+    /**
+     * Sets the temporal sampling of the outputs (see kymograph.setTemporalSampling)
+     * @param binning number of time points per bin (1 for no binning)
+     * @param binMethod method combining the time points of a bin: kymoProjection.MAX, kymoProjection.MEAN or kymoProjection.SUM
+     * @param stride only one time point every stride time points is read (1 to read all of them)
+     */
+    public void setTemporalSampling(int binning, int binMethod, int stride){
+        for (int i=0; i<kymos.length; i++) kymos[i].setTemporalSampling(binning, binMethod, stride);
+    }
+
+    /**
+     * Sets the way frames of virtual stacks are read (see kymograph.setMappedReading)
+     * @param mappedReading true to read the frames directly from the file whenever possible
+     */
+    public void setMappedReading(boolean mappedReading){
+        for (int i=0; i<kymos.length; i++) kymos[i].setMappedReading(mappedReading);
+    }
+
+    /**
+     * Sets the outputs to be streamed to disk as BigTIFF files (see kymograph.setStreamingOutput).
+     * The prefixes should differ from one path to the other, so that the files do not overwrite each other.
+     * @param folder folder where to write the files (null to build the outputs in memory)
+     * @param prefixes prefixes of the names of the files, one per path, in the order of the paths
+     * @param chunkSize size of the write buffer of each output, in bytes
+     */
+    public void setStreamingOutput(String folder, String[] prefixes, int chunkSize){
+        if (prefixes==null || prefixes.length!=kymos.length) throw new IllegalArgumentException("multiKymograph expects one prefix per path.");
+        for (int i=0; i<kymos.length; i++) kymos[i].setStreamingOutput(folder, prefixes[i], chunkSize);
+    }
+
+    /**
+     * Sets the number of threads used to process the frames
+     * @param nThreads number of threads (1 for single-threaded processing)
+     */
+    public void setThreads(int nThreads){
+        this.nThreads=Math.max(1, nThreads);
+    }
+
+    /**
+     * Sets the number of frames of a virtual stack decoded ahead, on a background thread,
+     * while the current frame is being sampled
+     * @param prefetch number of frames decoded ahead (0 to read the frames without background thread)
+     */
+    public void setPrefetch(int prefetch){
+        this.prefetch=Math.max(0, prefetch);
+    }
+
+    /**
+     * Builds all the requested outputs for all the paths, reading each frame of the 2D+t stack only once
+     * @param width width of the paths (used for the image straightening)
+     * @param doKymo true if the kymographs should be built
+     * @param doKymoStack true if the kymoStacks should be built
+     * @param doKymoMontage true if the kymoMontages should be built
+     * @return an array containing, for each path, an array of ImagePlus indexed by kymograph.KYMO, kymograph.KYMOSTACK and kymograph.KYMOMONTAGE
+     */
+    public ImagePlus[][] getKymos(int width, boolean doKymo, boolean doKymoStack, boolean doKymoMontage){
+        long startTime=System.currentTimeMillis();
+        for (int i=0; i<kymos.length; i++) kymos[i].prepareOutputs(width, doKymo, doKymoStack, doKymoMontage);
+        try{
+            kymograph.processFrames(kymograph.getSourceStack(ip, kymos), kymos, nThreads, prefetch);
+        }catch (RuntimeException e){
+            for (int i=0; i<kymos.length; i++) kymos[i].abortOutputs();
+            throw e;
+        }
+        ImagePlus[][] result=new ImagePlus[kymos.length][];
+        for (int i=0; i<kymos.length; i++) result[i]=kymos[i].getOutputs();
+        elapsedTime=System.currentTimeMillis()-startTime;
+        return result;
+    }
+
+    /**
+     * Reports on the last call to getKymos: time spent and number of frame reads saved
+     * over building the kymographs path after path
+     * @return the report, as a String
+     */
+    public String getLastReport(){
+        int nTimePoints=kymos[0].nRows*kymos[0].binning;
+        return kymos.length+" path(s) processed in "+elapsedTime+" ms: "+nTimePoints+" time points read instead of "+(kymos.length*nTimePoints)+"; "+geometryCache.getReport();
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ *
+ *  pathCodec v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.*;
+
+/**
+ * pathCodec writes and reads the "KymoPathInfo" block stored in the "Info" property of
+ * kymographs, ie the coordinates, on the 2D+t stack, of each pixel of the path.
+ * Version 2 of the block stores subpixel coordinates as fixed point values (1/SCALE pixel),
+ * delta-encoded, either as plain text or deflated and base64 encoded:
+ * <pre>
+ * &lt;KymoPathInfo&gt;
+ * &lt;version&gt;2&lt;/version&gt;
+ * &lt;encoding&gt;delta&lt;/encoding&gt; (or delta-deflate)
+ * &lt;scale&gt;1000&lt;/scale&gt;
+ * &lt;n&gt;number of points&lt;/n&gt;
+ * &lt;xy&gt;x0 y0 dx1 dy1 dx2 dy2...&lt;/xy&gt;
+ * &lt;/KymoPathInfo&gt;
+ * </pre>
+ * Version 1 blocks (integer coordinates within tab separated &lt;x&gt; and &lt;y&gt; tags) are still read.
+ * @author Fabrice P. Cordelieres
+ */
+public class pathCodec {
+    /**Current version of the KymoPathInfo block**/
+    public static final int VERSION=2;
+    /**Number of fixed point subdivisions of a pixel**/
+    public static final int SCALE=1000;
+    /**Encoding of the coordinates as plain text deltas**/
+    public static final String DELTA="delta";
+    /**Encoding of the coordinates as deflated, base64 encoded deltas**/
+    public static final String DELTA_DEFLATE="delta-deflate";
+
+    /**Base64 alphabet**/
+    static final char[] BASE64="ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**Fixed point x coordinates added so far**/
+    int[] x=new int[256];
+    /**Fixed point y coordinates added so far**/
+    int[] y=new int[256];
+    /**Number of points added so far**/
+    int n=0;
+    /**True if the coordinates should be deflated**/
+    boolean compress;
+
+    /**
+     * Starts building a new KymoPathInfo block
+     * @param compress true if the coordinates should be deflated and base64 encoded, false to store them as plain text
+     */
+    public pathCodec(boolean compress){
+        this.compress=compress;
+    }
+
+    /**
+     * Adds a point to the path
+     * @param xCoord x coordinate, in pixels
+     * @param yCoord y coordinate, in pixels
+     * @return this pathCodec
+     */
+    public pathCodec add(double xCoord, double yCoord){
+        if (n==x.length){
+            int[] xTmp=new int[2*n];
+            int[] yTmp=new int[2*n];
+            System.arraycopy(x, 0, xTmp, 0, n);
+            System.arraycopy(y, 0, yTmp, 0, n);
+            x=xTmp;
+            y=yTmp;
+        }
+        x[n]=(int) Math.round(xCoord*SCALE);
+        y[n]=(int) Math.round(yCoord*SCALE);
+        n++;
+        return this;
+    }
+
+    /**
+     * Adds all the points of a path
+     * @param xCoord x coordinates, in pixels
+     * @param yCoord y coordinates, in pixels
+     * @param nPoints number of points to add
+     * @return this pathCodec
+     */
+    public pathCodec add(float[] xCoord, float[] yCoord, int nPoints){
+        for (int i=0; i<nPoints; i++) add(xCoord[i], yCoord[i]);
+        return this;
+    }
+
+    /**
+     * Builds the KymoPathInfo block
+     * @return the KymoPathInfo block, as a String
+     */
+    public String build(){
+        StringBuilder sb=new StringBuilder(32+(compress?4:12)*n);
+        sb.append("<KymoPathInfo>\n<version>").append(VERSION).append("</version>\n");
+        sb.append("<encoding>").append(compress?DELTA_DEFLATE:DELTA).append("</encoding>\n");
+        sb.append("<scale>").append(SCALE).append("</scale>\n");
+        sb.append("<n>").append(n).append("</n>\n<xy>");
+        if (compress){
+            ByteArrayOutputStream bytes=new ByteArrayOutputStream(4*n);
+            DeflaterOutputStream out=new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_COMPRESSION));
+            try{
+                for (int i=0; i<n; i++){
+                    writeVarInt(out, i==0?x[0]:x[i]-x[i-1]);
+                    writeVarInt(out, i==0?y[0]:y[i]-y[i-1]);
+                }
+                out.close();
+            }catch (java.io.IOException e){
+                throw new RuntimeException("pathCodec: coordinates could not be compressed.", e);
+            }
+            toBase64(bytes.toByteArray(), sb);
+        }else{
+            for (int i=0; i<n; i++){
+                if (i!=0) sb.append(' ');
+                sb.append(i==0?x[0]:x[i]-x[i-1]).append(' ').append(i==0?y[0]:y[i]-y[i-1]);
+            }
+        }
+        sb.append("</xy>\n</KymoPathInfo>");
+        return sb.toString();
+    }
+
+    public String toString(){
+        return build();
+    }
+
+    /**
+     * Retrieves the coordinates of the path stored in a KymoPathInfo block (version 1 or 2)
+     * @param info the content of the "Info" property of the kymograph
+     * @return an array containing the x coordinates, then the y coordinates, in pixels; null if no KymoPathInfo block is found
+     */
+    public static float[][] decode(String info){
+        if (info==null) return null;
+        int start=info.lastIndexOf("<KymoPathInfo>");
+        if (start==-1) return null;
+        int end=info.indexOf("</KymoPathInfo>", start);
+        if (end==-1) end=info.length();
+
+        if (info.indexOf("<version>", start)==-1 || info.indexOf("<version>", start)>end){
+            int[] x=parseInts(info, "x", start, end);
+            int[] y=parseInts(info, "y", start, end);
+            int nPoints=Math.min(x.length, y.length);
+            float[][] out=new float[2][nPoints];
+            for (int i=0; i<nPoints; i++){
+                out[0][i]=x[i];
+                out[1][i]=y[i];
+            }
+            return out;
+        }
+
+        int version=Integer.parseInt(getTag(info, "version", start, end));
+        if (version>VERSION) throw new IllegalArgumentException("pathCodec: KymoPathInfo version "+version+" is not supported.");
+        String encoding=getTag(info, "encoding", start, end);
+        float scale=Float.parseFloat(getTag(info, "scale", start, end));
+        int nPoints=Integer.parseInt(getTag(info, "n", start, end));
+
+        int[] deltas;
+        if (encoding.equals(DELTA_DEFLATE)){
+            deltas=new int[2*nPoints];
+            Inflater inflater=new Inflater();
+            inflater.setInput(fromBase64(getTag(info, "xy", start, end)));
+            byte[] bytes=new byte[Math.max(16, 10*nPoints)];
+            int nBytes=0;
+            try{
+                while (!inflater.finished() && nBytes<bytes.length){
+                    int read=inflater.inflate(bytes, nBytes, bytes.length-nBytes);
+                    if (read==0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                    nBytes+=read;
+                }
+            }catch (DataFormatException e){
+                throw new IllegalArgumentException("pathCodec: corrupted KymoPathInfo.", e);
+            }finally{
+                inflater.end();
+            }
+            int pos=0;
+            for (int i=0; i<deltas.length; i++){
+                int shift=0;
+                int value=0;
+                byte b;
+                do{
+                    if (pos>=nBytes) throw new IllegalArgumentException("pathCodec: truncated KymoPathInfo.");
+                    b=bytes[pos++];
+                    value|=(b&0x7f)<<shift;
+                    shift+=7;
+                }while ((b&0x80)!=0);
+                deltas[i]=(value>>>1)^-(value&1);
+            }
+        }else if (encoding.equals(DELTA)){
+            deltas=parseInts(info, "xy", start, end);
+            if (deltas.length<2*nPoints) throw new IllegalArgumentException("pathCodec: truncated KymoPathInfo.");
+        }else{
+            throw new IllegalArgumentException("pathCodec: unknown KymoPathInfo encoding \""+encoding+"\".");
+        }
+
+        float[][] out=new float[2][nPoints];
+        int x=0;
+        int y=0;
+        for (int i=0; i<nPoints; i++){
+            x+=deltas[2*i];
+            y+=deltas[2*i+1];
+            out[0][i]=x/scale;
+            out[1][i]=y/scale;
+        }
+        return out;
+    }
+
+    /**
+     * Retrieves the content of a tag
+     * @param info the String to search
+     * @param tag name of the tag
+     * @param start index from which to search
+     * @param end index up to which to search
+     * @return the content of the tag, trimmed
+     */
+    private static String getTag(String info, String tag, int start, int end){
+        int from=info.indexOf("<"+tag+">", start);
+        int to=info.indexOf("</"+tag+">", start);
+        if (from==-1 || to==-1 || from>end || to>end) throw new IllegalArgumentException("pathCodec: tag <"+tag+"> missing from KymoPathInfo.");
+        return info.substring(from+tag.length()+2, to).trim();
+    }
+
+    /**
+     * Parses the integers contained in a tag, without splitting the String
+     * @param info the String to search
+     * @param tag name of the tag
+     * @param start index from which to search
+     * @param end index up to which to search
+     * @return the integers, as an array
+     */
+    private static int[] parseInts(String info, String tag, int start, int end){
+        int from=info.indexOf("<"+tag+">", start);
+        int to=info.indexOf("</"+tag+">", start);
+        if (from==-1 || to==-1 || from>end || to>end) throw new IllegalArgumentException("pathCodec: tag <"+tag+"> missing from KymoPathInfo.");
+        from+=tag.length()+2;
+
+        int count=0;
+        boolean inNumber=false;
+        for (int i=from; i<to; i++){
+            char c=info.charAt(i);
+            boolean digit=c=='-' || (c>='0' && c<='9');
+            if (digit && !inNumber) count++;
+            inNumber=digit;
+        }
+
+        int[] out=new int[count];
+        int index=0;
+        int value=0;
+        boolean negative=false;
+        inNumber=false;
+        for (int i=from; i<=to; i++){
+            char c=i<to?info.charAt(i):' ';
+            if (c=='-'){
+                negative=true;
+                inNumber=true;
+            }else if (c>='0' && c<='9'){
+                value=10*value+(c-'0');
+                inNumber=true;
+            }else if (inNumber){
+                out[index++]=negative?-value:value;
+                value=0;
+                negative=false;
+                inNumber=false;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Writes a signed integer as a zigzag encoded variable length integer
+     * @param out stream to write to
+     * @param value value to write
+     * @throws java.io.IOException if the value can't be written
+     */
+    private static void writeVarInt(DeflaterOutputStream out, int value) throws java.io.IOException{
+        int zigzag=(value<<1)^(value>>31);
+        while ((zigzag&~0x7f)!=0){
+            out.write((zigzag&0x7f)|0x80);
+            zigzag>>>=7;
+        }
+        out.write(zigzag);
+    }
+
+    /**
+     * Appends the base64 encoding of a byte array to a StringBuilder
+     * @param bytes bytes to encode
+     * @param sb StringBuilder to append to
+     */
+    private static void toBase64(byte[] bytes, StringBuilder sb){
+        for (int i=0; i<bytes.length; i+=3){
+            int b0=bytes[i]&0xff;
+            int b1=i+1<bytes.length?bytes[i+1]&0xff:0;
+            int b2=i+2<bytes.length?bytes[i+2]&0xff:0;
+            sb.append(BASE64[b0>>2]);
+            sb.append(BASE64[((b0&3)<<4)|(b1>>4)]);
+            sb.append(i+1<bytes.length?BASE64[((b1&15)<<2)|(b2>>6)]:'=');
+            sb.append(i+2<bytes.length?BASE64[b2&63]:'=');
+        }
+    }
+
+    /**
+     * Decodes a base64 encoded String
+     * @param in base64 encoded String
+     * @return the decoded bytes
+     */
+    private static byte[] fromBase64(String in){
+        int[] values=new int[128];
+        for (int i=0; i<BASE64.length; i++) values[BASE64[i]]=i;
+        int length=in.length();
+        while (length>0 && in.charAt(length-1)=='=') length--;
+        byte[] out=new byte[length*3/4];
+        int buffer=0;
+        int bits=0;
+        int index=0;
+        for (int i=0; i<length; i++){
+            char c=in.charAt(i);
+            if (c>=128 || (values[c]==0 && c!='A')) continue;
+            buffer=(buffer<<6)|values[c];
+            bits+=6;
+            if (bits>=8){
+                bits-=8;
+                if (index<out.length) out[index++]=(byte) (buffer>>bits);
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ *
+ *  pathSampler v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.*;
+import ij.gui.*;
+import ij.process.*;
+
+/**
+ * pathSampler holds the sampling geometry of a straightened path: the spline fitting
+ * and the normals to the path are computed once, together with the neighbours and
+ * bilinear weights of each pixel of the straightened image. Sampling a frame then
+ * comes down to a gather loop over its raw pixels.
+ * The geometry mimics the one of ij.plugin.Straightener.
+ * @author Fabrice P. Cordelieres
+ */
+public class pathSampler {
+    /**Path, once spline fitted for straightening**/
+    PolygonRoi fittedPath;
+    /**Length of the path once spline fitted, in physical dimensions**/
+    double length;
+    /**Coordinates of each pixel of the path, once spline fitted**/
+    FloatPolygon coordinates;
+    /**Number of pixels composing the path, ie width of the straightened image**/
+    int nbPix;
+    /**Width of the path, ie height of the straightened image**/
+    int width;
+    /**Width of the images to sample**/
+    int imgWidth;
+    /**Height of the images to sample**/
+    int imgHeight;
+    /**Index of the four neighbours of each pixel of the straightened image (lower left, lower right, upper right, upper left), -1 if outside the image**/
+    int[] neighbours;
+    /**Bilinear weights along x of each pixel of the straightened image**/
+    double[] xWeight;
+    /**Bilinear weights along y of each pixel of the straightened image**/
+    double[] yWeight;
+    /**Calibration table of the images to sample (null if none)**/
+    float[] cTable;
+
+    /**
+     * Creates a new pathSampler, computing the sampling geometry of a path on the images of an ImagePlus
+     * @param ip ImagePlus the path is drawn on
+     * @param path polyline Roi containing the path
+     * @param width width of the path
+     */
+    public pathSampler(ImagePlus ip, Roi path, int width){
+        if (!(path instanceof PolygonRoi)) throw new IllegalArgumentException("pathSampler expects a polyline ROI.");
+        if(width<1) width=1;
+        this.width=width;
+        imgWidth=ip.getWidth();
+        imgHeight=ip.getHeight();
+        cTable=ip.getCalibration().getCTable();
+
+        fittedPath=(PolygonRoi) path.clone();
+        if (fittedPath.isSplineFit()) fittedPath.removeSplineFit();
+        fittedPath.setImage(ip);
+        fittedPath.fitSplineForStraightening();
+        length=fittedPath.getLength();
+        fittedPath.setImage(null);
+
+        FloatPolygon p=fittedPath.getFloatPolygon();
+        coordinates=p;
+        nbPix=p.npoints;
+        neighbours=new int[4*nbPix*width];
+        xWeight=new double[nbPix*width];
+        yWeight=new double[nbPix*width];
+
+        double x1, y1;
+        double x2=p.xpoints[0]-(p.xpoints[1]-p.xpoints[0]);
+        double y2=p.ypoints[0]-(p.ypoints[1]-p.ypoints[0]);
+        for (int i=0; i<nbPix; i++){
+            x1=x2;
+            y1=y2;
+            x2=p.xpoints[i];
+            y2=p.ypoints[i];
+            if (width==1){
+                setGeometry(i, x2, y2);
+                continue;
+            }
+            double dx=x2-x1;
+            double dy=y1-y2;
+            double length=(float) Math.sqrt(dx*dx+dy*dy);
+            dx/=length;
+            dy/=length;
+            double x=x2-dy*width/2.0;
+            double y=y2-dx*width/2.0;
+            for (int j=0; j<width; j++){
+                setGeometry(j*nbPix+i, x, y);
+                x+=dy;
+                y+=dx;
+            }
+        }
+    }
+
+    /**
+     * Stores the neighbours and weights used to interpolate the value at (x, y), the same way
+     * ImageProcessor.getInterpolatedValue does (edge pixels are replicated, 0 is returned outside the image)
+     * @param pixel index of the pixel in the straightened image
+     * @param x x coordinate on the image to sample
+     * @param y y coordinate on the image to sample
+     */
+    private void setGeometry(int pixel, double x, double y){
+        if (x<-1 || x>=imgWidth || y<-1 || y>=imgHeight){
+            neighbours[4*pixel]=-1;
+            return;
+        }
+        int xBase=(int) x;
+        int yBase=(int) y;
+        double xFraction=x-xBase;
+        double yFraction=y-yBase;
+        if (xFraction<0) xFraction=0;
+        if (yFraction<0) yFraction=0;
+        xWeight[pixel]=xFraction;
+        yWeight[pixel]=yFraction;
+
+        int xNext=xBase+1;
+        int yNext=yBase+1;
+        if (x<0 || x>=imgWidth-1.0 || y<0 || y>=imgHeight-1.0){
+            xBase=Math.max(0, Math.min(xBase, imgWidth-1));
+            yBase=Math.max(0, Math.min(yBase, imgHeight-1));
+            xNext=Math.max(0, Math.min(xNext, imgWidth-1));
+            yNext=Math.max(0, Math.min(yNext, imgHeight-1));
+        }
+        neighbours[4*pixel]=yBase*imgWidth+xBase;
+        neighbours[4*pixel+1]=yBase*imgWidth+xNext;
+        neighbours[4*pixel+2]=yNext*imgWidth+xNext;
+        neighbours[4*pixel+3]=yNext*imgWidth+xBase;
+    }
+
+    /**
+     * Samples the path on a frame
+     * @param pixels pixels array of the frame (byte[], short[] or float[]), as returned by ImageStack.getPixels
+     * @param out float array of size nbPix*width receiving the straightened image, line by line
+     */
+    public void sample(Object pixels, float[] out){
+        int n=nbPix*width;
+        if (pixels instanceof byte[]){
+            byte[] px=(byte[]) pixels;
+            for (int i=0; i<n; i++){
+                int k=4*i;
+                if (neighbours[k]==-1){
+                    out[i]=0;
+                    continue;
+                }
+                out[i]=interpolate(value(px[neighbours[k]]&0xff), value(px[neighbours[k+1]]&0xff), value(px[neighbours[k+2]]&0xff), value(px[neighbours[k+3]]&0xff), xWeight[i], yWeight[i]);
+            }
+        }else if (pixels instanceof short[]){
+            short[] px=(short[]) pixels;
+            for (int i=0; i<n; i++){
+                int k=4*i;
+                if (neighbours[k]==-1){
+                    out[i]=0;
+                    continue;
+                }
+                out[i]=interpolate(value(px[neighbours[k]]&0xffff), value(px[neighbours[k+1]]&0xffff), value(px[neighbours[k+2]]&0xffff), value(px[neighbours[k+3]]&0xffff), xWeight[i], yWeight[i]);
+            }
+        }else if (pixels instanceof float[]){
+            float[] px=(float[]) pixels;
+            for (int i=0; i<n; i++){
+                int k=4*i;
+                if (neighbours[k]==-1){
+                    out[i]=0;
+                    continue;
+                }
+                out[i]=interpolate(px[neighbours[k]], px[neighbours[k+1]], px[neighbours[k+2]], px[neighbours[k+3]], xWeight[i], yWeight[i]);
+            }
+        }else{
+            throw new IllegalArgumentException("pathSampler only works on 8, 16 and 32-bit images.");
+        }
+    }
+
+    /**
+     * Flags the pixels of the images to sample used by the interpolation
+     * @param used one flag per pixel of the images to sample, set to true for the pixels used
+     */
+    public void markUsedPixels(boolean[] used){
+        for (int i=0; i<nbPix*width; i++){
+            if (neighbours[4*i]==-1) continue;
+            for (int k=4*i; k<4*i+4; k++) used[neighbours[k]]=true;
+        }
+    }
+
+    /**
+     * Converts a raw integer pixel value, applying the calibration table if any
+     * @param raw raw pixel value
+     * @return the pixel value
+     */
+    private float value(int raw){
+        return cTable==null?raw:cTable[raw];
+    }
+
+    /**
+     * Does the bilinear interpolation between four neighbours
+     * @param lowerLeft value of the lower left neighbour
+     * @param lowerRight value of the lower right neighbour
+     * @param upperRight value of the upper right neighbour
+     * @param upperLeft value of the upper left neighbour
+     * @param xFraction weight along x
+     * @param yFraction weight along y
+     * @return the interpolated value
+     */
+    private static float interpolate(double lowerLeft, double lowerRight, double upperRight, double upperLeft, double xFraction, double yFraction){
+        double upperAverage=upperLeft+xFraction*(upperRight-upperLeft);
+        double lowerAverage=lowerLeft+xFraction*(lowerRight-lowerLeft);
+        return (float) (lowerAverage+yFraction*(upperAverage-lowerAverage));
+    }
+
+    /**
+     * Returns the path, once spline fitted for straightening
+     * @return the fitted path as a PolygonRoi
+     */
+    public PolygonRoi getFittedPath(){
+        return fittedPath;
+    }
+
+    /**
+     * Returns the length of the path, once spline fitted
+     * @return the length of the path, in the physical dimensions of the image it has been drawn on
+     */
+    public double getLength(){
+        return length;
+    }
+
+    /**
+     * Returns the subpixel coordinates of each pixel of the path, once spline fitted
+     * @return the coordinates as a FloatPolygon
+     */
+    public FloatPolygon getCoordinates(){
+        return coordinates;
+    }
+
+    /**
+     * Returns the number of pixels composing the path, ie the width of the straightened image
+     * @return the number of pixels composing the path
+     */
+    public int getNbPix(){
+        return nbPix;
+    }
+
+    /**
+     * Returns the width of the path, ie the height of the straightened image
+     * @return the width of the path
+     */
+    public int getWidth(){
+        return width;
+    }
+}
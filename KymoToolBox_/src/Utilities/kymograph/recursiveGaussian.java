@@ -0,0 +1,185 @@
+/**
+ *
+ *  recursiveGaussian v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package Utilities.kymograph;
+
+import ij.process.*;
+
+import java.util.Arrays;
+
+/**
+ * recursiveGaussian blurs images with the recursive (IIR) approximation of the Gaussian proposed by
+ * Young and van Vliet (Signal Processing, 1995): a causal then an anti-causal third order filter
+ * along each axis, so that the cost per pixel doesn't depend on sigma. Out-of-image pixels are set
+ * to the nearest edge pixel, as GaussianBlur does, the anti-causal filter being initialised as
+ * proposed by Triggs and Sdika (IEEE Trans. Signal Processing, 2006).
+ * @author Fabrice P. Cordelieres
+ */
+public class recursiveGaussian {
+    /**Standard deviation of the Gaussian**/
+    double sigma;
+    /**Gain of the filter**/
+    double b;
+    /**Feedback coefficients of the filter**/
+    double a1, a2, a3;
+    /**Matrix giving the initial values of the anti-causal filter from the last values of the causal one**/
+    double[][] m=new double[3][3];
+
+    /**Smallest sigma the approximation is valid for**/
+    public static final double MIN_SIGMA=0.5;
+
+    /**
+     * Creates a new recursiveGaussian, computing the coefficients of the filter
+     * @param sigma standard deviation of the Gaussian (at least MIN_SIGMA)
+     */
+    public recursiveGaussian(double sigma){
+        if (sigma<MIN_SIGMA) throw new IllegalArgumentException("recursiveGaussian expects sigma to be at least "+MIN_SIGMA+".");
+        this.sigma=sigma;
+        double q=sigma>=2.5?0.98711*sigma-0.96330:3.97156-4.14554*Math.sqrt(1-0.26891*sigma);
+        double b0=1.57825+2.44413*q+1.4281*q*q+0.422205*q*q*q;
+        a1=(2.44413*q+2.85619*q*q+1.26661*q*q*q)/b0;
+        a2=-(1.4281*q*q+1.26661*q*q*q)/b0;
+        a3=0.422205*q*q*q/b0;
+        b=1-(a1+a2+a3);
+        initBoundary();
+    }
+
+    /**
+     * Computes the matrix initialising the anti-causal filter: beyond the last pixel, the input is constant,
+     * so that the deviations of the causal filter from its steady state decay freely. Their effect on the first
+     * values of the anti-causal filter is obtained once, by filtering each unit deviation over the extension.
+     */
+    private void initBoundary(){
+        int length=(int) Math.ceil(20*sigma)+50;
+        double[] w=new double[length+3];
+        double[] y=new double[length+3];
+        for (int j=0; j<3; j++){
+            Arrays.fill(w, 0);
+            Arrays.fill(y, 0);
+            w[2-j]=1;
+            for (int k=3; k<length+3; k++) w[k]=a1*w[k-1]+a2*w[k-2]+a3*w[k-3];
+            for (int k=length-1; k>=0; k--) y[k]=b*w[k+3]+a1*y[k+1]+a2*y[k+2]+a3*y[k+3];
+            for (int k=0; k<3; k++) m[k][j]=y[k];
+        }
+    }
+
+    /**
+     * Blurs a line in place
+     * @param line values of the line
+     * @param w buffer of the same length, receiving the causal filter
+     */
+    void blurLine(double[] line, double[] w){
+        int n=line.length;
+        double first=line[0];
+        double w1=first, w2=first, w3=first;
+        for (int i=0; i<n; i++){
+            double v=b*line[i]+a1*w1+a2*w2+a3*w3;
+            w3=w2;
+            w2=w1;
+            w1=v;
+            w[i]=v;
+        }
+        double last=line[n-1];
+        double d0=w[n-1]-last;
+        double d1=(n>1?w[n-2]:first)-last;
+        double d2=(n>2?w[n-3]:first)-last;
+        double y1=last+m[0][0]*d0+m[0][1]*d1+m[0][2]*d2;
+        double y2=last+m[1][0]*d0+m[1][1]*d1+m[1][2]*d2;
+        double y3=last+m[2][0]*d0+m[2][1]*d1+m[2][2]*d2;
+        for (int i=n-1; i>=0; i--){
+            double v=b*w[i]+a1*y1+a2*y2+a3*y3;
+            y3=y2;
+            y2=y1;
+            y1=v;
+            line[i]=v;
+        }
+    }
+
+    /**
+     * Blurs a FloatProcessor in place, along both axes. Columns are filtered side by side, row after row,
+     * so that the pixels are read in order
+     * @param fp the FloatProcessor
+     */
+    public void blur(FloatProcessor fp){
+        int width=fp.getWidth();
+        int height=fp.getHeight();
+        float[] pixels=(float[]) fp.getPixels();
+        double[] line=new double[width];
+        double[] w=new double[width];
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width; x++) line[x]=pixels[y*width+x];
+            blurLine(line, w);
+            for (int x=0; x<width; x++) pixels[y*width+x]=(float) line[x];
+        }
+
+        double[] causal=new double[width*height];
+        double[] w1=new double[width];
+        double[] w2=new double[width];
+        double[] w3=new double[width];
+        for (int x=0; x<width; x++){
+            w1[x]=pixels[x];
+            w2[x]=pixels[x];
+            w3[x]=pixels[x];
+        }
+        for (int y=0; y<height; y++){
+            int offset=y*width;
+            for (int x=0; x<width; x++){
+                double v=b*pixels[offset+x]+a1*w1[x]+a2*w2[x]+a3*w3[x];
+                w3[x]=w2[x];
+                w2[x]=w1[x];
+                w1[x]=v;
+                causal[offset+x]=v;
+            }
+        }
+        int last=(height-1)*width;
+        for (int x=0; x<width; x++){
+            double lastValue=pixels[last+x];
+            double d0=causal[last+x]-lastValue;
+            double d1=(height>1?causal[last-width+x]:pixels[x])-lastValue;
+            double d2=(height>2?causal[last-2*width+x]:pixels[x])-lastValue;
+            w1[x]=lastValue+m[0][0]*d0+m[0][1]*d1+m[0][2]*d2;
+            w2[x]=lastValue+m[1][0]*d0+m[1][1]*d1+m[1][2]*d2;
+            w3[x]=lastValue+m[2][0]*d0+m[2][1]*d1+m[2][2]*d2;
+        }
+        for (int y=height-1; y>=0; y--){
+            int offset=y*width;
+            for (int x=0; x<width; x++){
+                double v=b*causal[offset+x]+a1*w1[x]+a2*w2[x]+a3*w3[x];
+                w3[x]=w2[x];
+                w2[x]=w1[x];
+                w1[x]=v;
+                pixels[offset+x]=(float) v;
+            }
+        }
+    }
+
+    /**
+     * Blurs a FloatProcessor in place, along both axes
+     * @param fp the FloatProcessor
+     * @param sigma standard deviation of the Gaussian (0 for no blur, values below MIN_SIGMA being raised to MIN_SIGMA)
+     */
+    public static void blur(FloatProcessor fp, double sigma){
+        if (sigma<=0) return;
+        new recursiveGaussian(Math.max(sigma, MIN_SIGMA)).blur(fp);
+    }
+}
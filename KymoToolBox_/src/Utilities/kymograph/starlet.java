@@ -0,0 +1,155 @@
+/**
+ *
+ *  starlet v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package Utilities.kymograph;
+
+import ij.process.*;
+
+/**
+ * starlet decomposes an image with the isotropic undecimated ("a trous") wavelet transform: level j
+ * is the previous level smoothed by the separable B3-spline kernel [1 4 6 4 1]/16, its taps being
+ * 2^(j-1) pixels apart, and wavelet plane j is level j-1 minus level j. Each level costs five taps per
+ * pixel and per axis whatever its scale, and only the current and previous levels are kept, plus a
+ * single line. Out-of-image pixels are set to the nearest edge pixel, as GaussianBlur does.
+ * @author Fabrice P. Cordelieres
+ */
+public class starlet {
+    /**Width of the image**/
+    int width;
+    /**Height of the image**/
+    int height;
+    /**Index of the current level (0 for the input image)**/
+    int level=0;
+    /**Current level**/
+    float[] current;
+    /**Previous level (null before the first call to nextLevel)**/
+    float[] previous=null;
+    /**Line smoothed along y, extended on both sides by replicating its edges, before being smoothed along x**/
+    float[] line;
+
+    /**Weight of the central tap of the B3-spline kernel**/
+    static final float K0=6f/16f;
+    /**Weight of the taps one step away from the centre**/
+    static final float K1=4f/16f;
+    /**Weight of the taps two steps away from the centre**/
+    static final float K2=1f/16f;
+
+    /**
+     * Creates a new starlet, level 0 being a 32-bit copy of the image
+     * @param iproc the input ImageProcessor (left unchanged, raw values being used)
+     */
+    public starlet(ImageProcessor iproc){
+        width=iproc.getWidth();
+        height=iproc.getHeight();
+        current=(float[]) ImageProcessorCalculator.toFloat(iproc, null).getPixels();
+    }
+
+    /**
+     * Computes the next level, replacing the previous one
+     */
+    public void nextLevel(){
+        level++;
+        int step=(int) Math.min(1L<<Math.min(level-1, 32), Math.max(width, height));
+        float[] smoothed=previous==null?new float[width*height]:previous;
+        smooth(current, smoothed, step);
+        previous=current;
+        current=smoothed;
+    }
+
+    /**
+     * Moves forward to a given level
+     * @param level index of the level to reach (not below the current one)
+     */
+    public void toLevel(int level){
+        if (level<this.level) throw new IllegalArgumentException("starlet: level "+level+" has already been passed.");
+        while (this.level<level) nextLevel();
+    }
+
+    /**
+     * Smoothes a level by the B3-spline kernel, along y then along x, line by line
+     * @param in the level to smooth
+     * @param out receives the smoothed level
+     * @param step distance between the taps of the kernel, in pixels
+     */
+    private void smooth(float[] in, float[] out, int step){
+        int stepX=Math.min(step, width);
+        int stepY=Math.min(step, height);
+        int margin=Math.min(2*stepX, width);
+        if (line==null || line.length<width+2*margin) line=new float[width+2*margin];
+        for (int y=0; y<height; y++){
+            int r0=Math.max(y-2*stepY, 0)*width;
+            int r1=Math.max(y-stepY, 0)*width;
+            int r2=y*width;
+            int r3=Math.min(y+stepY, height-1)*width;
+            int r4=Math.min(y+2*stepY, height-1)*width;
+            for (int x=0; x<width; x++) line[margin+x]=K2*(in[r0+x]+in[r4+x])+K1*(in[r1+x]+in[r3+x])+K0*in[r2+x];
+            float first=line[margin];
+            float last=line[margin+width-1];
+            for (int x=0; x<margin; x++){
+                line[x]=first;
+                line[margin+width+x]=last;
+            }
+            int d1=Math.min(stepX, margin);
+            int d2=Math.min(2*stepX, margin);
+            for (int x=0; x<width; x++){
+                int c=margin+x;
+                out[r2+x]=K2*(line[c-d2]+line[c+d2])+K1*(line[c-d1]+line[c+d1])+K0*line[c];
+            }
+        }
+    }
+
+    /**
+     * Returns the wavelet plane of the current level, ie the previous level minus the current one
+     * @return the plane, as a new float array
+     */
+    public float[] getPlane(){
+        if (previous==null) throw new IllegalStateException("starlet: no plane before the first level.");
+        float[] plane=new float[width*height];
+        for (int i=0; i<plane.length; i++) plane[i]=previous[i]-current[i];
+        return plane;
+    }
+
+    /**
+     * Sums the start to stop wavelet planes of an ImageProcessor: the sum telescopes to level start-1 minus level stop
+     * @param iproc the input ImageProcessor
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @param range array receiving the min and max of wavelet plane start (null if not needed)
+     * @return a new FloatProcessor containing the sum
+     */
+    public static FloatProcessor getSum(ImageProcessor iproc, int start, int stop, double[] range){
+        starlet levels=new starlet(iproc);
+        levels.toLevel(start-1);
+        float[] sum=levels.current.clone();
+        if (range!=null){
+            levels.toLevel(start);
+            improveKymo.getRange(sum, levels.current, range);
+        }
+        levels.toLevel(stop);
+        ImageProcessorCalculator.calculate(sum, levels.current, ImageProcessorCalculator.SUBSTRACT);
+        FloatProcessor result=new FloatProcessor(levels.width, levels.height, sum, null);
+        result.resetMinAndMax();
+        return result;
+    }
+}
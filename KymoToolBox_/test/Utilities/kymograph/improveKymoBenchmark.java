@@ -0,0 +1,87 @@
+/**
+ *
+ *  improveKymoBenchmark v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package Utilities.kymograph;
+
+import ij.process.*;
+
+import java.util.Random;
+
+/**
+ * Times the sums of wavelet planes computed in closed form (setTelescoping(true)) against the sums of the
+ * planes computed one by one (setTelescoping(false)), for 8, 16 and 32-bit images. Run, once the tests are
+ * compiled (mvn test-compile), with:
+ * java -cp target/classes:target/test-classes:ij-1.52p.jar Utilities.kymograph.improveKymoBenchmark [width height start stop]
+ * @author Fabrice P. Cordelieres
+ */
+public class improveKymoBenchmark {
+    /**Number of timed runs, the fastest one being reported**/
+    static final int REPEATS=3;
+
+    /**
+     * Returns the fastest time taken to sum planes start to stop
+     * @param filter the improveKymo to time
+     * @param iproc the input image
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @return the time, in ms
+     */
+    static double time(improveKymo filter, ImageProcessor iproc, int start, int stop){
+        filter.getSum(iproc, start, stop);
+        long best=Long.MAX_VALUE;
+        for (int i=0; i<REPEATS; i++){
+            long t=System.nanoTime();
+            filter.getSum(iproc, start, stop);
+            best=Math.min(best, System.nanoTime()-t);
+        }
+        return best/1e6;
+    }
+
+    public static void main(String[] args){
+        int width=args.length>0?Integer.parseInt(args[0]):1024;
+        int height=args.length>1?Integer.parseInt(args[1]):1024;
+        int start=args.length>2?Integer.parseInt(args[2]):1;
+        int stop=args.length>3?Integer.parseInt(args[3]):15;
+
+        Random random=new Random(1);
+        FloatProcessor fp=new FloatProcessor(width, height);
+        for (int i=0; i<width*height; i++) fp.setf(i, (float) (1000+150*random.nextGaussian()));
+        fp.resetMinAndMax();
+
+        improveKymo closedForm=new improveKymo();
+        closedForm.setBackend(improveKymo.SPATIAL);
+        improveKymo planeByPlane=new improveKymo();
+        planeByPlane.setBackend(improveKymo.SPATIAL);
+        planeByPlane.setTelescoping(false);
+
+        System.out.println(width+"x"+height+", planes "+start+" to "+stop+" (fastest of "+REPEATS+" runs)");
+        ImageProcessor[] images={fp.convertToByte(true), fp.convertToShort(true), fp};
+        for (int i=0; i<images.length; i++){
+            double tPlanes=time(planeByPlane, images[i], start, stop);
+            double tClosed=time(closedForm, images[i], start, stop);
+            System.out.println(images[i].getBitDepth()+"-bit: plane by plane "+Math.round(tPlanes)+" ms, closed form "
+                    +Math.round(tClosed)+" ms, x"+Math.round(10*tPlanes/tClosed)/10.0);
+        }
+    }
+}
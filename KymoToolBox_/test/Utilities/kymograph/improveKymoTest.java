@@ -0,0 +1,180 @@
+/**
+ *
+ *  improveKymoTest v1, 18 oct. 2026
+    Fabrice P Cordelieres, fabrice.cordelieres at gmail.com
+
+    Copyright (C) 2026 Fabrice P. Cordelieres
+
+    License:
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation; either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package Utilities.kymograph;
+
+import static org.junit.Assert.*;
+
+import ij.plugin.filter.*;
+import ij.process.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the sums of wavelet planes, computed in closed form (setTelescoping(true)) or plane by plane
+ * (setTelescoping(false)), and their conversion back to 8 or 16-bit as done by Improve_Kymo, against a reference
+ * summing the differences of Gaussian blurs one plane at a time then converting the sum with ImageJ
+ * @author Fabrice P. Cordelieres
+ */
+public class improveKymoTest {
+    /**Plane ranges checked, as {start, stop}**/
+    static final int[][] RANGES={{1, 15}, {2, 6}, {3, 3}, {1, 1}, {4, 5}};
+
+    /**
+     * Generates a test image: a smooth pattern, noise and a few bright spots
+     * @param bitDepth 8, 16 or 32
+     * @return the image
+     */
+    static ImageProcessor getImage(int bitDepth){
+        int width=97;
+        int height=61;
+        Random random=new Random(bitDepth);
+        FloatProcessor fp=new FloatProcessor(width, height);
+        for (int y=0; y<height; y++){
+            for (int x=0; x<width; x++){
+                double v=1000+400*Math.sin(x/9.0)*Math.cos(y/13.0)+150*random.nextGaussian();
+                if (random.nextDouble()<0.01) v+=2000;
+                fp.setf(x, y, (float) v);
+            }
+        }
+        fp.resetMinAndMax();
+        switch (bitDepth){
+            case 8: return fp.convertToByte(true);
+            case 16: return fp.convertToShort(false);
+            default: return fp;
+        }
+    }
+
+    /**
+     * Does a pixelwise operation between two ImageProcessors through float arrays, the min and max of the result
+     * being left as set by duplicate, convertToFloat and setFloatArray
+     * @param ip1 input 1 (ImageProcessor)
+     * @param ip2 input 2 (ImageProcessor)
+     * @param add true for ip1+ip2, false for ip1-ip2
+     * @return a new ImageProcessor containing the result
+     */
+    static ImageProcessor calculate(ImageProcessor ip1, ImageProcessor ip2, boolean add){
+        ImageProcessor result=((ip1.duplicate()).convertToFloat());
+        float[][] array1=ip1.getFloatArray();
+        float[][] array2=ip2.getFloatArray();
+        for (int i=0; i<array1.length; i++){
+            for (int j=0; j<array1[0].length; j++) array1[i][j]+=add?array2[i][j]:-array2[i][j];
+        }
+        result.setFloatArray(array1);
+        return result;
+    }
+
+    /**
+     * Filters an image plane by plane, then writes the sum back to the bit depth of the image: each plane is the
+     * difference of two blurred duplicates of the image, added to an accumulator, which is converted with
+     * convertToShort(true), followed by convertToByte(true) for 8-bit images
+     * @param iproc the input ImageProcessor
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @return the filtered image, at the bit depth of the input
+     */
+    static ImageProcessor getReference(ImageProcessor iproc, int start, int stop){
+        ImageProcessor result=iproc.createProcessor(iproc.getWidth(), iproc.getHeight());
+        for (int i=start; i<=stop; i++){
+            ImageProcessor plane1=iproc.duplicate();
+            ImageProcessor plane2=iproc.duplicate();
+            (new GaussianBlur()).blurGaussian(plane1, i-1, i-1, 0.00001);
+            (new GaussianBlur()).blurGaussian(plane2, i, i, 0.00001);
+            result=calculate(result, calculate(plane1, plane2, false), true);
+        }
+        switch (iproc.getBitDepth()){
+            case 8: return result.convertToShort(true).convertToByte(true);
+            case 16: return result.convertToShort(true);
+            default: return result;
+        }
+    }
+
+    /**
+     * Filters an image, then writes the sum back to the bit depth of the image, as Improve_Kymo does
+     * @param filter the filter to use
+     * @param iproc the input ImageProcessor
+     * @param start first wavelet plane to consider
+     * @param stop last wavelet plane to consider
+     * @return the filtered image, at the bit depth of the input
+     */
+    static ImageProcessor getFiltered(improveKymo filter, ImageProcessor iproc, int start, int stop){
+        double[] range=new double[2];
+        ImageProcessor sum=filter.getSum(iproc, start, stop, range);
+        ImageProcessor result=iproc.createProcessor(iproc.getWidth(), iproc.getHeight());
+        switch (iproc.getBitDepth()){
+            case 8: ImageProcessorCalculator.toByte((float[]) sum.getPixels(), (byte[]) result.getPixels(), range[0], range[1], true); break;
+            case 16: ImageProcessorCalculator.toShort((float[]) sum.getPixels(), (short[]) result.getPixels(), range[0], range[1], true); break;
+            default: result=sum;
+        }
+        return result;
+    }
+
+    /**
+     * Compares the closed form and the plane by plane filters with the reference, for all the plane ranges
+     * @param bitDepth 8, 16 or 32
+     * @param tolerance largest difference allowed, relative to the range of the reference
+     */
+    static void checkAgainstReference(int bitDepth, double tolerance){
+        ImageProcessor iproc=getImage(bitDepth);
+        for (boolean telescoping: new boolean[]{true, false}){
+            improveKymo filter=new improveKymo();
+            filter.setTelescoping(telescoping);
+            for (int[] range: RANGES){
+                ImageProcessor expected=getReference(iproc, range[0], range[1]);
+                ImageProcessor actual=getFiltered(filter, iproc, range[0], range[1]);
+                expected.resetMinAndMax();
+                double delta=tolerance*Math.max(expected.getMax()-expected.getMin(), 1);
+                String message=bitDepth+"-bit, "+(telescoping?"closed form":"plane by plane")+", planes "+range[0]+" to "+range[1]+", pixel ";
+                for (int i=0; i<iproc.getPixelCount(); i++) assertEquals(message+i, expected.getf(i), actual.getf(i), delta);
+            }
+        }
+    }
+
+    @Test
+    public void matchesReferenceFor8bit(){
+        checkAgainstReference(8, 0);
+    }
+
+    @Test
+    public void matchesReferenceFor16bit(){
+        checkAgainstReference(16, 0);
+    }
+
+    @Test
+    public void matchesReferenceWithinFloatRoundingFor32bit(){
+        checkAgainstReference(32, 1e-5);
+    }
+
+    @Test
+    public void inputIsLeftUnchanged(){
+        for (int bitDepth: new int[]{8, 16, 32}){
+            ImageProcessor iproc=getImage(bitDepth);
+            ImageProcessor copy=iproc.duplicate();
+            new improveKymo().getSum(iproc, 2, 6);
+            for (int i=0; i<iproc.getPixelCount(); i++) assertEquals(copy.getf(i), iproc.getf(i), 0);
+        }
+    }
+}